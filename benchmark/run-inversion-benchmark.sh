@@ -0,0 +1,41 @@
+#!/bin/sh
+#
+# This file is part of trust|me
+# Copyright(c) 2013 - 2017 Fraunhofer AISEC
+# Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+#
+# This program is free software; you can redistribute it and/or modify it
+# under the terms and conditions of the GNU General Public License,
+# version 2 (GPL 2), as published by the Free Software Foundation.
+#
+# This program is distributed in the hope it will be useful, but WITHOUT
+# ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+# FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+#
+# You should have received a copy of the GNU General Public License along with
+# this program; if not, see <http://www.gnu.org/licenses/>
+#
+# The full GNU General Public License is included in this distribution in
+# the file called "COPYING".
+#
+# Contact Information:
+# Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+#
+
+
+# Compiles and runs the icon inversion benchmark on the host JVM.
+#
+# Usage: run-inversion-benchmark.sh [iterations]
+
+set -e
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+SRC_DIR="$BENCH_DIR/../src"
+OUT_DIR="${OUT_DIR:-$BENCH_DIR/out}"
+
+mkdir -p "$OUT_DIR"
+javac -encoding UTF-8 -d "$OUT_DIR" \
+    "$SRC_DIR/de/fraunhofer/aisec/trustme/service/notification/IconInverter.java" \
+    "$BENCH_DIR/src/de/fraunhofer/aisec/trustme/service/benchmark/IconInversionBenchmark.java"
+
+exec java -cp "$OUT_DIR" de.fraunhofer.aisec.trustme.service.benchmark.IconInversionBenchmark "$@"
@@ -0,0 +1,61 @@
+#!/bin/sh
+#
+# This file is part of trust|me
+# Copyright(c) 2013 - 2017 Fraunhofer AISEC
+# Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+#
+# This program is free software; you can redistribute it and/or modify it
+# under the terms and conditions of the GNU General Public License,
+# version 2 (GPL 2), as published by the Free Software Foundation.
+#
+# This program is distributed in the hope it will be useful, but WITHOUT
+# ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+# FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+#
+# You should have received a copy of the GNU General Public License along with
+# this program; if not, see <http://www.gnu.org/licenses/>
+#
+# The full GNU General Public License is included in this distribution in
+# the file called "COPYING".
+#
+# Contact Information:
+# Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+#
+
+# Compiles and runs the cmld transport benchmark on the host JVM (JDK 16 or newer,
+# needed for Unix domain sockets).
+#
+# The benchmark needs the generated service protobuf classes and the protobuf-nano
+# runtime. By default they are taken from the intermediates of an Android build in
+# ANDROID_BUILD_TOP; set PROTO_JAR and NANO_JAR to use other jars.
+#
+# Usage: run-transport-benchmark.sh [--mix=state|icon|custom|mixed|all] [--messages=N]
+#                                   [--warmup=N] [--inflight=N] [--format=raw|tmz1|both]
+
+set -e
+
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+SRC_DIR="$BENCH_DIR/../src"
+OUT_DIR="${OUT_DIR:-$BENCH_DIR/out}"
+
+LIBS="${ANDROID_BUILD_TOP:-.}/out/target/common/obj/JAVA_LIBRARIES"
+PROTO_JAR="${PROTO_JAR:-$LIBS/trustme.cml.service-proto-java_intermediates/classes.jar}"
+NANO_JAR="${NANO_JAR:-$LIBS/libprotobuf-java-nano_intermediates/classes.jar}"
+
+for jar in "$PROTO_JAR" "$NANO_JAR"; do
+    if [ ! -f "$jar" ]; then
+        echo "$jar not found, set ANDROID_BUILD_TOP or PROTO_JAR/NANO_JAR" >&2
+        exit 1
+    fi
+done
+
+CLASSPATH="$PROTO_JAR:$NANO_JAR"
+
+mkdir -p "$OUT_DIR"
+javac -encoding UTF-8 -d "$OUT_DIR" -cp "$CLASSPATH" \
+    "$SRC_DIR/de/fraunhofer/aisec/trustme/service/CmldFraming.java" \
+    "$SRC_DIR/de/fraunhofer/aisec/trustme/service/notification/PixelDeflater.java" \
+    "$BENCH_DIR/src/de/fraunhofer/aisec/trustme/service/benchmark/TransportBenchmark.java"
+
+exec java -cp "$OUT_DIR:$CLASSPATH" \
+    de.fraunhofer.aisec.trustme.service.benchmark.TransportBenchmark "$@"
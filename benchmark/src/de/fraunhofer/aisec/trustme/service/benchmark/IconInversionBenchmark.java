@@ -0,0 +1,140 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.benchmark;
+
+import java.util.Random;
+
+import de.fraunhofer.aisec.trustme.service.notification.IconInverter;
+
+/**
+ * Compares the bulk icon inversion of IconInverter with the former per-pixel inversion
+ * for typical icon sizes.
+ *
+ * The per-pixel variant is modelled after the removed invertBitmap(): for every pixel a
+ * color is fetched and stored through a method call, unpremultiplied and premultiplied
+ * again like Bitmap.getPixel() and setPixel() do. On a device each of these calls is a
+ * JNI crossing in addition, so the speedup measured here is a lower bound.
+ */
+public final class IconInversionBenchmark {
+    private static final int[] SIZES = { 96, 192 };
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.printf("%-9s %14s %14s %9s%n", "icon", "per-pixel us", "bulk us", "speedup");
+        for (int size : SIZES) {
+            byte[] pixels = createPixels(size);
+            PixelAccess bitmap = new PixelAccess(size, pixels.clone());
+            PixelAccess inverted = new PixelAccess(size, new byte[pixels.length]);
+
+            // warmup
+            for (int i = 0; i < iterations; i++) {
+                invertPerPixel(bitmap, inverted);
+                IconInverter.invert(pixels, 0, pixels.length);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                invertPerPixel(bitmap, inverted);
+            long perPixel = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                IconInverter.invert(pixels, 0, pixels.length);
+            long bulk = (System.nanoTime() - start) / iterations;
+
+            System.out.printf("%-9s %14.1f %14.1f %8.1fx%n", size + "x" + size,
+                    perPixel / 1e3, bulk / 1e3, (double) perPixel / bulk);
+        }
+    }
+
+    private static void invertPerPixel(PixelAccess bitmap, PixelAccess bitmapInv) {
+        int a, r, g, b;
+        for (int y = 0; y < bitmap.size; y++) {
+            for (int x = 0; x < bitmap.size; x++) {
+                int p = bitmap.getPixel(x, y);
+                a = p >>> 24;
+                r = (p >> 16) & 0xff;
+                g = (p >> 8) & 0xff;
+                b = p & 0xff;
+                bitmapInv.setPixel(x, y, (a << 24) | ((255 - r) << 16) | ((255 - g) << 8) | (255 - b));
+            }
+        }
+    }
+
+    /**
+     * Stands in for an ARGB_8888 Bitmap with premultiplied raw pixels.
+     */
+    private static final class PixelAccess {
+        final int size;
+        final byte[] pixels;
+
+        PixelAccess(int size, byte[] pixels) {
+            this.size = size;
+            this.pixels = pixels;
+        }
+
+        int getPixel(int x, int y) {
+            int i = (y * size + x) * 4;
+            int a = pixels[i + 3] & 0xff;
+            if (a == 0)
+                return 0;
+            int r = (pixels[i] & 0xff) * 255 / a;
+            int g = (pixels[i + 1] & 0xff) * 255 / a;
+            int b = (pixels[i + 2] & 0xff) * 255 / a;
+            return (a << 24) | (r << 16) | (g << 8) | b;
+        }
+
+        void setPixel(int x, int y, int color) {
+            int i = (y * size + x) * 4;
+            int a = color >>> 24;
+            pixels[i] = (byte) (((color >> 16) & 0xff) * a / 255);
+            pixels[i + 1] = (byte) (((color >> 8) & 0xff) * a / 255);
+            pixels[i + 2] = (byte) ((color & 0xff) * a / 255);
+            pixels[i + 3] = (byte) a;
+        }
+    }
+
+    /**
+     * Creates premultiplied pixels of a round, antialiased icon on a transparent background.
+     */
+    private static byte[] createPixels(int size) {
+        byte[] pixels = new byte[size * size * 4];
+        Random random = new Random(size);
+        float radius = size / 2f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = x + 0.5f - radius, dy = y + 0.5f - radius;
+                float d = radius - (float) Math.sqrt(dx * dx + dy * dy);
+                int a = d >= 1 ? 255 : d <= 0 ? 0 : (int) (d * 255);
+                int i = (y * size + x) * 4;
+                pixels[i] = (byte) ((0x40 + random.nextInt(0x80)) * a / 255);
+                pixels[i + 1] = (byte) (0x80 * a / 255);
+                pixels[i + 2] = (byte) (0xc0 * a / 255);
+                pixels[i + 3] = (byte) a;
+            }
+        }
+        return pixels;
+    }
+}
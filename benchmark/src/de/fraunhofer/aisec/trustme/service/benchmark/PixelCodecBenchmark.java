@@ -0,0 +1,123 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.benchmark;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import de.fraunhofer.aisec.trustme.service.notification.PixelDeflater;
+
+/**
+ * Measures the compressed pixel format (TMZ1) of PixelCodec against the raw format for
+ * the sizes of the pixel fields sent to cmld: large icons at xhdpi and xxhdpi and a
+ * captured custom notification.
+ *
+ * For every size the bytes on the wire and the time to encode and decode a field are
+ * printed. The raw format costs no encoding or decoding at all, so the times are what
+ * compression adds to each side of the transfer.
+ */
+public final class PixelCodecBenchmark {
+    private static final int[][] SIZES = { { 96, 96 }, { 192, 192 }, { 1030, 256 } };
+
+    public static void main(String[] args) throws DataFormatException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        System.out.printf("%-9s %10s %10s %7s %11s %11s%n",
+                "field", "raw bytes", "TMZ1 bytes", "ratio", "encode us", "decode us");
+        for (int[] size : SIZES) {
+            int width = size[0], height = size[1];
+            boolean icon = width == height;
+            byte[] pixels = icon ? createIcon(width) : createCustom(width, height);
+
+            byte[] encoded = PixelDeflater.compress(pixels);
+            if (encoded == null) {
+                System.out.printf("%-9s %10d %10s%n", width + "x" + height, pixels.length, "-");
+                continue;
+            }
+
+            // warmup
+            for (int i = 0; i < iterations; i++)
+                PixelDeflater.decompress(PixelDeflater.compress(pixels), pixels.length);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                encoded = PixelDeflater.compress(pixels);
+            long encode = (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                PixelDeflater.decompress(encoded, pixels.length);
+            long decode = (System.nanoTime() - start) / iterations;
+
+            System.out.printf("%-9s %10d %10d %6.1fx %11.1f %11.1f%n", width + "x" + height,
+                    pixels.length, encoded.length, (double) pixels.length / encoded.length,
+                    encode / 1e3, decode / 1e3);
+        }
+    }
+
+    /**
+     * Creates premultiplied pixels of a round, antialiased icon on a transparent background.
+     */
+    static byte[] createIcon(int size) {
+        byte[] pixels = new byte[size * size * 4];
+        Random random = new Random(size);
+        float radius = size / 2f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = x + 0.5f - radius, dy = y + 0.5f - radius;
+                float d = radius - (float) Math.sqrt(dx * dx + dy * dy);
+                int a = d >= 1 ? 255 : d <= 0 ? 0 : (int) (d * 255);
+                int i = (y * size + x) * 4;
+                pixels[i] = (byte) ((0x40 + random.nextInt(0x80)) * a / 255);
+                pixels[i + 1] = (byte) (0x80 * a / 255);
+                pixels[i + 2] = (byte) (0xc0 * a / 255);
+                pixels[i + 3] = (byte) a;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Creates opaque pixels resembling a custom notification: a gradient background, a
+     * round picture and some noise standing in for text and photo content.
+     */
+    static byte[] createCustom(int width, int height) {
+        byte[] pixels = new byte[width * height * 4];
+        Random random = new Random(width * 31 + height);
+        int radius = Math.min(width, height) / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = (y * width + x) * 4;
+                int dx = x - radius, dy = y - radius;
+                boolean picture = dx * dx + dy * dy < radius * radius;
+                int noise = picture ? random.nextInt(64) : 0;
+                pixels[offset] = (byte) (0x30 + noise);
+                pixels[offset + 1] = (byte) (0x30 + (y * 0x40 / height) + noise);
+                pixels[offset + 2] = (byte) (0x30 + (x * 0x40 / width));
+                pixels[offset + 3] = (byte) 0xff;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.DataFormatException;
+
+import com.google.protobuf.nano.MessageNano;
+
+import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
+import de.fraunhofer.aisec.trustme.service.CService.CmldToServiceMessage;
+import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
+import de.fraunhofer.aisec.trustme.service.CmldFraming;
+import de.fraunhofer.aisec.trustme.service.notification.PixelDeflater;
+
+/**
+ * Measures the cmld socket path on a plain Linux JVM.
+ *
+ * A fake cmld listens on a Unix domain socket and echoes every message it receives the way
+ * cmld forwards it to the other containers: notifications come back as a NOTIFICATION
+ * CmldToServiceMessage with sourceId and sourceColor set, state messages as an
+ * AIRPLANE_MODE_CHANGED message. The client side frames messages with CmldFraming into a
+ * batch buffer like OutboundScheduler and reads the replies with CmldFraming and
+ * protobuf-nano like ServiceReceiver, so both directions of the real code path are
+ * covered by a single round trip.
+ *
+ * Latency is measured from handing a message to the writer until its reply has been
+ * parsed, with at most --inflight messages outstanding. Each mix is run with raw pixel
+ * fields and with the compressed format of PixelCodec (TMZ1); in the latter case every
+ * message is compressed with PixelDeflater when it is written and decompressed when its
+ * reply has been parsed, like PixelCodec does on both sides. Use
+ * run-transport-benchmark.sh to compile and run it.
+ */
+public final class TransportBenchmark {
+    private static final int ICON_SIZE = 96;
+    private static final int CUSTOM_WIDTH = 1030;
+    private static final int CUSTOM_HEIGHT = 256;
+
+    // Same limits as OutboundScheduler
+    private static final int BATCH_BYTE_BUDGET = 64*1024;
+    private static final int MAX_BATCH_MESSAGES = 64;
+
+    private enum Mix {
+        STATE, ICON, CUSTOM, MIXED
+    }
+
+    private final Mix mix;
+    private final int messages;
+    private final int inflight;
+    private final boolean compress;
+
+    private final byte[] iconPixels;
+    private final byte[] customPixels;
+
+    private TransportBenchmark(Mix mix, int messages, int inflight, boolean compress) {
+        this.mix = mix;
+        this.messages = messages;
+        this.inflight = inflight;
+        this.compress = compress;
+        this.iconPixels = createPixels(ICON_SIZE, ICON_SIZE);
+        this.customPixels = createPixels(CUSTOM_WIDTH, CUSTOM_HEIGHT);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mixName = "all";
+        int messages = 20000;
+        int warmup = 5000;
+        int inflight = 32;
+        String format = "both";
+
+        for (String arg : args) {
+            if (arg.startsWith("--mix="))
+                mixName = arg.substring("--mix=".length());
+            else if (arg.startsWith("--messages="))
+                messages = Integer.parseInt(arg.substring("--messages=".length()));
+            else if (arg.startsWith("--warmup="))
+                warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+            else if (arg.startsWith("--inflight="))
+                inflight = Integer.parseInt(arg.substring("--inflight=".length()));
+            else if (arg.startsWith("--format="))
+                format = arg.substring("--format=".length());
+            else {
+                System.err.println("Usage: TransportBenchmark [--mix=state|icon|custom|mixed|all]"
+                        + " [--messages=N] [--warmup=N] [--inflight=N] [--format=raw|tmz1|both]");
+                System.exit(1);
+            }
+        }
+
+        Mix[] mixes = mixName.equals("all") ? Mix.values()
+                : new Mix[] { Mix.valueOf(mixName.toUpperCase()) };
+
+        boolean[] formats = format.equals("both") ? new boolean[] { false, true }
+                : new boolean[] { format.equals("tmz1") };
+
+        System.out.printf("%-7s %-6s %9s %10s %11s %9s %9s %10s%n",
+                "mix", "format", "messages", "msg/s", "MB/s", "p50 us", "p99 us", "avg frame");
+        for (Mix mix : mixes) {
+            for (boolean compress : formats) {
+                TransportBenchmark benchmark = new TransportBenchmark(mix, messages, inflight, compress);
+                if (warmup > 0)
+                    new TransportBenchmark(mix, warmup, inflight, compress).run();
+                benchmark.run().print(mix, compress);
+            }
+        }
+    }
+
+    private static final class Result {
+        int messages;
+        long bytes;
+        long elapsedNs;
+        long[] latenciesNs;
+
+        void print(Mix mix, boolean compress) {
+            Arrays.sort(latenciesNs);
+            double seconds = elapsedNs / 1e9;
+            System.out.printf("%-7s %-6s %9d %10.0f %11.2f %9.1f %9.1f %10d%n",
+                    mix.name().toLowerCase(), compress ? "tmz1" : "raw", messages, messages / seconds,
+                    bytes / seconds / (1024*1024), percentile(0.50) / 1e3,
+                    percentile(0.99) / 1e3, bytes / messages);
+        }
+
+        private long percentile(double p) {
+            int index = (int) Math.ceil(p * latenciesNs.length) - 1;
+            return latenciesNs[Math.max(0, Math.min(index, latenciesNs.length - 1))];
+        }
+    }
+
+    private Result run() throws Exception {
+        Path socketPath = Files.createTempFile("cml-service-bench", ".sock");
+        Files.delete(socketPath);
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socketPath);
+
+        final ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(address);
+        Thread cmld = new Thread(new FakeCmld(server), "fake-cmld");
+        cmld.start();
+
+        SocketChannel channel = SocketChannel.open(address);
+        final InputStream in = inputStream(channel);
+        final OutputStream out = outputStream(channel);
+
+        final ServiceToCmldMessage[] workload = createWorkload();
+        final AtomicLongArray sendTimes = new AtomicLongArray(messages);
+        final long[] latencies = new long[messages];
+        final Semaphore window = new Semaphore(inflight);
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DataInputStream din = new DataInputStream(new BufferedInputStream(in, 64*1024));
+                byte[] buffer = new byte[64*1024];
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        int length = CmldFraming.readHeader(din);
+                        if (buffer.length < length)
+                            buffer = new byte[Integer.highestOneBit(length) << 1];
+                        din.readFully(buffer, 0, length);
+                        CmldToServiceMessage reply = MessageNano.mergeFrom(new CmldToServiceMessage(), buffer, 0, length);
+                        if (reply.notification != null)
+                            decodePixels(reply.notification);
+                        // cmld keeps the order, so replies match the sent messages in order
+                        latencies[i] = System.nanoTime() - sendTimes.get(i);
+                        window.release();
+                    }
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, "reader");
+        reader.start();
+
+        long bytes = 0;
+        long start = System.nanoTime();
+        byte[] batchBuffer = new byte[BATCH_BYTE_BUDGET];
+        int next = 0;
+        boolean havePermit = false;
+        while (next < messages) {
+            if (!havePermit)
+                window.acquire();
+            havePermit = false;
+            int length = 0;
+            int batched = 0;
+            do {
+                ServiceToCmldMessage message = workload[next % workload.length];
+                if (message.notification != null)
+                    encodePixels(message.notification);
+                int frameSize = CmldFraming.frameSize(message);
+                if (length > 0 && length + frameSize > batchBuffer.length) {
+                    // keep the permit for the message starting the next batch
+                    havePermit = true;
+                    break;
+                }
+                sendTimes.set(next++, System.nanoTime());
+                if (frameSize > batchBuffer.length) {
+                    out.write(CmldFraming.encode(message));
+                }
+                else {
+                    length += CmldFraming.encode(message, batchBuffer, length);
+                }
+                bytes += frameSize;
+                batched++;
+            } while (next < messages && batched < MAX_BATCH_MESSAGES && window.tryAcquire());
+            if (length > 0)
+                out.write(batchBuffer, 0, length);
+        }
+        reader.join();
+        long elapsed = System.nanoTime() - start;
+
+        channel.close();
+        cmld.join();
+        server.close();
+        Files.deleteIfExists(socketPath);
+
+        Result result = new Result();
+        result.messages = messages;
+        result.bytes = bytes;
+        result.elapsedNs = elapsed;
+        result.latenciesNs = latencies;
+        return result;
+    }
+
+    /**
+     * Stands in for cmld: forwards notifications back with the source container set and
+     * answers state messages, using the same framing in both directions.
+     */
+    private static final class FakeCmld implements Runnable {
+        private final ServerSocketChannel server;
+
+        FakeCmld(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = server.accept()) {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(inputStream(channel), 64*1024));
+                OutputStream out = outputStream(channel);
+                byte[] buffer = new byte[64*1024];
+                byte[] replies = new byte[BATCH_BYTE_BUDGET];
+                int length = 0;
+                while (true) {
+                    int messageLength;
+                    try {
+                        messageLength = CmldFraming.readHeader(in);
+                    }
+                    catch (IOException e) {
+                        return; // client closed the connection
+                    }
+                    if (buffer.length < messageLength)
+                        buffer = new byte[Integer.highestOneBit(messageLength) << 1];
+                    in.readFully(buffer, 0, messageLength);
+                    ServiceToCmldMessage message = MessageNano.mergeFrom(
+                            new ServiceToCmldMessage(), buffer, 0, messageLength);
+
+                    CmldToServiceMessage reply = new CmldToServiceMessage();
+                    if (message.code == ServiceToCmldMessage.NOTIFICATION) {
+                        reply.code = CmldToServiceMessage.NOTIFICATION;
+                        reply.sourceId = "a0";
+                        reply.sourceColor = "#ffc0c0c0";
+                        reply.notification = message.notification;
+                    }
+                    else {
+                        reply.code = CmldToServiceMessage.AIRPLANE_MODE_CHANGED;
+                        reply.airplaneMode = message.airplaneMode;
+                    }
+
+                    int frameSize = CmldFraming.frameSize(reply);
+                    if (length > 0 && length + frameSize > replies.length) {
+                        out.write(replies, 0, length);
+                        length = 0;
+                    }
+                    if (frameSize > replies.length)
+                        out.write(CmldFraming.encode(reply));
+                    else
+                        length += CmldFraming.encode(reply, replies, length);
+                    // Flush once everything received so far has been answered
+                    if (length > 0 && in.available() == 0) {
+                        out.write(replies, 0, length);
+                        length = 0;
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /*
+     * Channels.newInputStream() and newOutputStream() serialize reads and writes on the
+     * channel's blocking lock, so they cannot be used by a reader and a writer thread at
+     * the same time.
+     */
+    private static InputStream inputStream(final SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    private static OutputStream outputStream(final SocketChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            }
+        };
+    }
+
+    private ServiceToCmldMessage[] createWorkload() {
+        ServiceToCmldMessage[] workload = new ServiceToCmldMessage[100];
+        Random random = new Random(42);
+        for (int i = 0; i < workload.length; i++) {
+            Mix kind = mix;
+            if (mix == Mix.MIXED) {
+                int r = random.nextInt(100);
+                kind = r < 80 ? Mix.STATE : r < 95 ? Mix.ICON : Mix.CUSTOM;
+            }
+            workload[i] = createMessage(kind, i);
+        }
+        return workload;
+    }
+
+    private ServiceToCmldMessage createMessage(Mix kind, int i) {
+        ServiceToCmldMessage message = new ServiceToCmldMessage();
+        if (kind == Mix.STATE) {
+            message.code = ServiceToCmldMessage.AIRPLANE_MODE_CHANGED;
+            message.airplaneMode = (i & 1) == 0;
+            return message;
+        }
+
+        ContainerNotification cn = new ContainerNotification();
+        cn.code = ContainerNotification.POST_NOTIFICATION;
+        cn.id = i;
+        cn.tag = "";
+        cn.pkgName = "com.example.mail";
+        cn.timestamp = 1500000000000L + i;
+        if (kind == Mix.ICON) {
+            cn.title = "Jane Doe";
+            cn.text = "Re: Meeting notes for the review on Thursday " + i;
+            cn.originalIcon = iconPixels;
+            cn.originalIconWidth = ICON_SIZE;
+            cn.originalIconHeight = ICON_SIZE;
+        }
+        else {
+            cn.customIcon = "ic_media_play";
+            cn.customNotification = customPixels;
+            cn.customNotificationWidth = CUSTOM_WIDTH;
+            cn.customNotificationHeight = CUSTOM_HEIGHT;
+        }
+        message.code = ServiceToCmldMessage.NOTIFICATION;
+        message.notification = cn;
+        return message;
+    }
+
+    /**
+     * Creates ARGB_8888 pixels resembling a notification: an opaque background with a
+     * gradient, a round picture and some noise standing in for text and photo content.
+     */
+    private static byte[] createPixels(int width, int height) {
+        byte[] pixels = new byte[width * height * 4];
+        Random random = new Random(width * 31 + height);
+        int radius = Math.min(width, height) / 2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = (y * width + x) * 4;
+                int dx = x - radius, dy = y - radius;
+                boolean picture = dx * dx + dy * dy < radius * radius;
+                int noise = picture ? random.nextInt(64) : 0;
+                pixels[offset] = (byte) (0x30 + noise);
+                pixels[offset + 1] = (byte) (0x30 + (y * 0x40 / height) + noise);
+                pixels[offset + 2] = (byte) (0x30 + (x * 0x40 / width));
+                pixels[offset + 3] = (byte) 0xff;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Puts the pixels of a workload notification into its message the way PixelCodec.encode()
+     * does, compressing them anew for every message.
+     */
+    private void encodePixels(ContainerNotification cn) {
+        byte[] pixels = cn.originalIconWidth != 0 ? iconPixels : customPixels;
+        byte[] encoded = compress ? PixelDeflater.compress(pixels) : null;
+        if (cn.originalIconWidth != 0)
+            cn.originalIcon = encoded != null ? encoded : pixels;
+        else
+            cn.customNotification = encoded != null ? encoded : pixels;
+    }
+
+    /**
+     * Restores the raw pixels of a received notification like PixelCodec.decode().
+     */
+    private static void decodePixels(ContainerNotification cn) throws IOException {
+        try {
+            int iconSize = cn.originalIconWidth * cn.originalIconHeight * 4;
+            if (PixelDeflater.isCompressed(cn.originalIcon, iconSize))
+                cn.originalIcon = PixelDeflater.decompress(cn.originalIcon, iconSize);
+            int customSize = cn.customNotificationWidth * cn.customNotificationHeight * 4;
+            if (PixelDeflater.isCompressed(cn.customNotification, customSize))
+                cn.customNotification = PixelDeflater.decompress(cn.customNotification, customSize);
+        }
+        catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+}
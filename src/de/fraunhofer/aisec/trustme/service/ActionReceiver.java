@@ -40,7 +40,6 @@ import java.util.Properties;
 
 import de.fraunhofer.aisec.trustme.service.notification.TrustmeNotificationManager;
 
-import de.fraunhofer.aisec.trustme.cmlcom.Sender;
 import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
 import de.fraunhofer.aisec.trustme.Container;
 import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
@@ -51,12 +50,12 @@ import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
  */
 public class ActionReceiver extends BroadcastReceiver {
     private static final String TAG = "TrustmeService";
-    private final Sender sender;
+    private final ICmldSender sender;
 
     // Received when the device is to be wiped ("factory reset").
     private static final String MASTER_CLEAR_NOTIFICATION = "android.intent.action.MASTER_CLEAR_NOTIFICATION";
 
-    public ActionReceiver(Sender sender) {
+    public ActionReceiver(ICmldSender sender) {
         super();
         this.sender = sender;
     }
@@ -0,0 +1,248 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
+import de.fraunhofer.aisec.trustme.service.notification.NotificationDeltaDecoder;
+
+/**
+ * The CmldConnectionSupervisor owns the Unix Domain Socket connection to cmld. It
+ * (re)connects with a bounded exponential backoff, attaches the OutboundScheduler to
+ * and builds a new ServiceReceiver for every connection, and lets the TrustmeService
+ * replay the state cmld needs to know about (see onConnected()) each time a connection
+ * has been established.
+ *
+ * The run loop never returns. It blocks in the ServiceReceiver's read loop as long as the
+ * connection is alive and reconnects as soon as the ServiceReceiver reports that the
+ * connection has been lost (e.g., because cmld has been restarted).
+ */
+public abstract class CmldConnectionSupervisor implements ICmldSender, Runnable {
+    private static final String TAG = "TrustmeService.CmldConnectionSupervisor";
+    private static final String SOCK_ADDR = "/dev/socket/cml-service";
+    private static final int SOCKET_SEND_BUFFER_SIZE = 1024*1024;
+    private static final int FRAME_BUFFER_POOL_SIZE = 8*1024*1024;
+
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 30 * 1000;
+    // Connections that die faster than this do not reset the backoff, so that we do not
+    // hammer cmld with reconnects while it is repeatedly accepting and dropping us.
+    private static final long MIN_STABLE_CONNECTION_MS = 5 * 1000;
+
+    private final Context context;
+    private final PowerManager powerManager;
+
+    private final OutboundScheduler outbound = new OutboundScheduler();
+    private final FrameBufferPool frameBufferPool = new FrameBufferPool(FRAME_BUFFER_POOL_SIZE);
+    // Outlives single connections, as the other containers do not know about our reconnects.
+    private final NotificationDeltaDecoder deltaDecoder = new NotificationDeltaDecoder(
+            new NotificationDeltaDecoder.SourceListener() {
+                @Override
+                public void onNewSource(String sourceId) {
+                    outbound.onNewReceiver();
+                }
+            });
+    private final NotificationRenderer renderer;
+    private final NotificationTimestampTable notificationTimestamps = new NotificationTimestampTable();
+    private LocalSocket socket = null;
+    private ServiceReceiver receiver = null;
+
+    // Connection metrics printed by dump(); only written by the supervisor thread.
+    private volatile boolean connected = false;
+    private volatile int connects = 0;
+    private volatile int failedAttempts = 0;
+    private volatile long initialConnectLatencyMs = -1;
+    private volatile long lastReconnectLatencyMs = -1;
+    private volatile long maxReconnectLatencyMs = 0;
+    private volatile long totalReconnectLatencyMs = 0;
+
+    public CmldConnectionSupervisor(
+        final Context context,
+        final PowerManager powerManager,
+        final NotificationManager notificationManager) {
+            this.context = context;
+            this.powerManager = powerManager;
+            this.renderer = new NotificationRenderer(context, notificationManager);
+            outbound.start();
+    }
+
+    /**
+     * Called on the supervisor thread right after a (re)connect, before any message
+     * from cmld is handled. Implementations should (re)send all state cmld relies on.
+     */
+    protected abstract void onConnected();
+
+    @Override
+    public void sendMessage(ServiceToCmldMessage message) {
+        outbound.sendMessage(message);
+    }
+
+    @Override
+    public void run() {
+        long backoff = INITIAL_BACKOFF_MS;
+        long disconnectedSince = SystemClock.elapsedRealtime();
+
+        for (;;) {
+            try {
+                connect();
+            }
+            catch (IOException e) {
+                failedAttempts++;
+                Log.d(TAG, "Could not connect to socket " + SOCK_ADDR + ": " + e.getMessage()
+                        + "; retrying in " + backoff + " ms");
+                disconnect();
+                SystemClock.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+                continue;
+            }
+
+            long connectedSince = SystemClock.elapsedRealtime();
+            onConnected();
+            recordConnect(SystemClock.elapsedRealtime() - disconnectedSince);
+
+            // Handle messages from cmld until the connection is lost.
+            receiver.run();
+
+            Log.w(TAG, "Lost connection to cmld; reconnecting");
+            disconnect();
+            disconnectedSince = SystemClock.elapsedRealtime();
+            if (disconnectedSince - connectedSince >= MIN_STABLE_CONNECTION_MS) {
+                backoff = INITIAL_BACKOFF_MS;
+            }
+            else {
+                SystemClock.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new LocalSocket(LocalSocket.SOCKET_STREAM);
+        Log.d(TAG, "Trying to connect to socket " + SOCK_ADDR);
+        socket.connect(new LocalSocketAddress(SOCK_ADDR, LocalSocketAddress.Namespace.FILESYSTEM));
+        Log.d(TAG, "Successfully connected to socket");
+
+        // Increase socket send buffer size in order to send moderately large
+        // messages (i.e. wallpaper) without blocking for several seconds.
+        socket.setSendBufferSize(SOCKET_SEND_BUFFER_SIZE); // note: cmld has set the max socket send buffer size to 1 MB
+
+        receiver = new ServiceReceiver(
+                context,
+                socket.getInputStream(),
+                frameBufferPool,
+                powerManager,
+                renderer,
+                deltaDecoder,
+                notificationTimestamps,
+                this);
+
+        outbound.attach(socket.getOutputStream());
+        connected = true;
+    }
+
+    private void disconnect() {
+        connected = false;
+        outbound.detach();
+        receiver = null;
+
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                Log.d(TAG, "Exception while closing socket: " + e.getMessage());
+            }
+            socket = null;
+        }
+    }
+
+    private void recordConnect(long latencyMs) {
+        connects++;
+        if (connects == 1) {
+            initialConnectLatencyMs = latencyMs;
+            Log.d(TAG, "Connected to cmld after " + latencyMs + " ms");
+            return;
+        }
+
+        lastReconnectLatencyMs = latencyMs;
+        totalReconnectLatencyMs += latencyMs;
+        if (latencyMs > maxReconnectLatencyMs)
+            maxReconnectLatencyMs = latencyMs;
+        Log.i(TAG, "Reconnected to cmld after " + latencyMs + " ms (reconnect #" + (connects - 1) + ")");
+    }
+
+    /**
+     * Drops the pooled frame buffers when the system is running low on memory.
+     */
+    public void onTrimMemory(int level) {
+        frameBufferPool.clear();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Returns the time (SystemClock.elapsedRealtime()) the first message has been written
+     * to cmld, or -1 if none has been written yet.
+     */
+    public long getFirstWriteTime() {
+        return outbound.getFirstWriteTime();
+    }
+
+    /**
+     * Returns the time (in ms) it took to reconnect to cmld and replay our state after the
+     * connection has been lost the last time, or -1 if we have never reconnected.
+     */
+    public long getLastReconnectLatencyMs() {
+        return lastReconnectLatencyMs;
+    }
+
+    public void dump(PrintWriter pw) {
+        int reconnects = connects > 0 ? connects - 1 : 0;
+        pw.println("cmld connection:");
+        pw.println("  connected: " + connected);
+        pw.println("  connects: " + connects + " (failed attempts: " + failedAttempts + ")");
+        pw.println("  initial connect latency: " + initialConnectLatencyMs + " ms");
+        pw.println("  reconnect latency: last " + lastReconnectLatencyMs + " ms"
+                + ", max " + maxReconnectLatencyMs + " ms"
+                + ", avg " + (reconnects > 0 ? totalReconnectLatencyMs / reconnects : 0) + " ms"
+                + " over " + reconnects + " reconnects");
+        outbound.dump(pw);
+        frameBufferPool.dump(pw);
+        deltaDecoder.dump(pw);
+        renderer.dump(pw);
+        notificationTimestamps.dump(pw);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.google.protobuf.nano.MessageNano;
+
+/**
+ * Framing used on the cmld socket: every protobuf message is preceded by its length,
+ * encoded as a 4-byte integer in network byte order.
+ *
+ * This class only depends on plain Java so that it can be shared with tools running
+ * outside of Android.
+ */
+public final class CmldFraming {
+    public static final int HEADER_SIZE = 4;
+
+    // Upper bound for the length prefix of a single message; anything larger means that
+    // we lost track of the message boundaries.
+    public static final int MAX_MESSAGE_SIZE = 16*1024*1024;
+
+    private CmldFraming() {
+    }
+
+    public static void writeHeader(byte[] buffer, int offset, int length) {
+        buffer[offset] = (byte) (length >>> 24);
+        buffer[offset + 1] = (byte) (length >>> 16);
+        buffer[offset + 2] = (byte) (length >>> 8);
+        buffer[offset + 3] = (byte) length;
+    }
+
+    /**
+     * Returns the size of the frame (header and payload) the given message will occupy.
+     */
+    public static int frameSize(MessageNano message) {
+        return HEADER_SIZE + message.getSerializedSize();
+    }
+
+    /**
+     * Writes the framed message to buffer at offset and returns the number of bytes
+     * written, which equals frameSize(message).
+     */
+    public static int encode(MessageNano message, byte[] buffer, int offset) {
+        int length = message.getSerializedSize();
+        writeHeader(buffer, offset, length);
+        MessageNano.toByteArray(message, buffer, offset + HEADER_SIZE, length);
+        return HEADER_SIZE + length;
+    }
+
+    public static byte[] encode(MessageNano message) {
+        byte[] frame = new byte[frameSize(message)];
+        encode(message, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Reads the length prefix of the next frame.
+     *
+     * @throws IOException if the stream has been closed or the length is out of bounds
+     */
+    public static int readHeader(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE_SIZE)
+            throw new IOException("Invalid message length " + length);
+        return length;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of byte buffers for reading frames from the cmld socket (and for decoding the
+ * pixels of received notifications, see TrustmeNotificationManager). Buffers are kept in
+ * power-of-two size classes (starting at MIN_BUFFER_SIZE), so a buffer handed out by
+ * acquire() is at least as large as requested but usually larger; callers must use the
+ * requested length instead of buffer.length.
+ *
+ * The pool retains at most maxRetainedBytes in total. Buffers that would exceed this
+ * limit are left to the garbage collector when they are released, as are buffers larger
+ * than CmldFraming.MAX_MESSAGE_SIZE, which are never pooled.
+ */
+public class FrameBufferPool {
+    private static final int MIN_BUFFER_SIZE = 4*1024;
+    private static final int MAX_BUFFERS_PER_CLASS = 2;
+
+    private final ArrayDeque<byte[]>[] classes;
+    private final String name;
+    private final int maxRetainedBytes;
+    private int retainedBytes = 0;
+
+    // Statistics printed by dump().
+    private long hits = 0;
+    private long misses = 0;
+
+    public FrameBufferPool(int maxRetainedBytes) {
+        this("frame buffer pool", maxRetainedBytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    public FrameBufferPool(String name, int maxRetainedBytes) {
+        this.name = name;
+        this.maxRetainedBytes = maxRetainedBytes;
+        int count = classOf(CmldFraming.MAX_MESSAGE_SIZE) + 1;
+        classes = new ArrayDeque[count];
+        for (int i = 0; i < count; i++)
+            classes[i] = new ArrayDeque<byte[]>(MAX_BUFFERS_PER_CLASS);
+    }
+
+    private static int classOf(int size) {
+        int c = 0;
+        while ((MIN_BUFFER_SIZE << c) < size)
+            c++;
+        return c;
+    }
+
+    /**
+     * Returns a buffer with a length of at least size bytes.
+     */
+    public synchronized byte[] acquire(int size) {
+        int c = classOf(size);
+        if (c >= classes.length) {
+            misses++;
+            return new byte[size];
+        }
+        byte[] buffer = classes[c].pollFirst();
+        if (buffer != null) {
+            retainedBytes -= buffer.length;
+            hits++;
+            return buffer;
+        }
+        misses++;
+        return new byte[MIN_BUFFER_SIZE << c];
+    }
+
+    /**
+     * Hands a buffer obtained by acquire() back to the pool.
+     */
+    public synchronized void release(byte[] buffer) {
+        int c = classOf(buffer.length);
+        if (c >= classes.length || (MIN_BUFFER_SIZE << c) != buffer.length)
+            return; // not one of ours
+        if (classes[c].size() >= MAX_BUFFERS_PER_CLASS || retainedBytes + buffer.length > maxRetainedBytes)
+            return;
+        classes[c].addFirst(buffer);
+        retainedBytes += buffer.length;
+    }
+
+    /**
+     * Drops all retained buffers (e.g., on memory pressure).
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<byte[]> c : classes)
+            c.clear();
+        retainedBytes = 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(name + ":");
+        pw.println("  retained: " + retainedBytes + " bytes (max " + maxRetainedBytes + ")");
+        pw.println("  hits: " + hits + ", misses: " + misses);
+    }
+}
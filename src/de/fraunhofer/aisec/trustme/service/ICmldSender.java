@@ -0,0 +1,38 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
+
+public interface ICmldSender {
+    /**
+     * Queues a message for delivery to cmld.
+     *
+     * This method may be called from any thread (e.g., by the ActionReceiver and the
+     * TrustmeActionReceiver on the main thread). It never blocks on the socket. If there is
+     * currently no connection to cmld, the message may be dropped; state that cmld must
+     * know about is resent by the CmldConnectionSupervisor after each (re)connect.
+     */
+    public void sendMessage(ServiceToCmldMessage message);
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
+import de.fraunhofer.aisec.trustme.service.notification.TrustmeNotificationManager;
+
+/**
+ * Renders and posts (or cancels) notifications received from other containers off the
+ * thread reading from cmld, so that control messages like SUSPEND or RESUME are never
+ * stuck behind the rendering of a large notification.
+ *
+ * Work is distributed over a small number of single-threaded stripes by the globalId of
+ * the notification. All updates of a notification are therefore handled strictly in
+ * the order they have been received, while different notifications are rendered in
+ * parallel.
+ *
+ * Updates are coalesced: a notification is rendered once the coalescing window
+ * (to.trustme.notification.coalesce_ms) after its first pending update has passed, and
+ * only its newest update (POST or CANCEL) is rendered then. Superseded updates are
+ * skipped, as they would have been replaced on screen right away. A window of 0 only
+ * coalesces updates that queue up while the stripe is busy.
+ *
+ * The number of renders pending per stripe is bounded, so that a peer flooding us with
+ * distinct notifications cannot pile up messages and their pixels on the heap. Since
+ * blocking the reader would stall control messages as well, updates of new notifications
+ * are shed once MAX_PENDING_PER_STRIPE renders are pending. Cancels carry no pixels and
+ * may take up to twice as many slots before they are shed, so that notifications are not
+ * left behind on screen unless the peer keeps flooding.
+ */
+public class NotificationRenderer {
+    private static final String TAG = "TrustmeService.NotificationRenderer";
+
+    private static final int MAX_STRIPES = 4;
+    private static final int MAX_PENDING_PER_STRIPE = 64;
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final ScheduledExecutorService[] stripes;
+    private final AtomicInteger[] stripePending;
+
+    // Newest update per posted notification (tag and id) not rendered yet
+    private final ConcurrentHashMap<String, Update> latest = new ConcurrentHashMap<String, Update>();
+
+    // Statistics printed by dump().
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private volatile int maxPending = 0;
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final AtomicLong shedPosts = new AtomicLong(0);
+    private final AtomicLong shedCancels = new AtomicLong(0);
+    private long rendered = 0; // guarded by this
+    private long renderTimeUs = 0; // guarded by this
+    private long notifyCalls = 0; // guarded by this
+    private long notifyTimeUs = 0; // guarded by this
+
+    public NotificationRenderer(Context context, NotificationManager notificationManager) {
+        this.context = context;
+        this.notificationManager = notificationManager;
+
+        int count = Math.max(1, Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors() / 2));
+        stripes = new ScheduledExecutorService[count];
+        stripePending = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            stripePending[i] = new AtomicInteger(0);
+            final String name = "TrustmeService.Render-" + i;
+            stripes[i] = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, name);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the given notification for posting or canceling (depending on cn.code) with
+     * the given globalId as tag. cn must have passed the timestamp check and must not be
+     * a delta update anymore. Must only be called by a single thread.
+     */
+    public void submit(String sourceId, String sourceColor, String globalId, ContainerNotification cn) {
+        // Notifications are posted with globalId as tag and cn.id as id; only updates of
+        // the very same notification may replace each other.
+        final String key = globalId + "#" + cn.id;
+        Update update = new Update(sourceId, sourceColor, globalId, cn);
+        if (latest.put(key, update) != null) {
+            // A render of this notification is already scheduled and will pick up this update.
+            skipped.incrementAndGet();
+            return;
+        }
+
+        int stripe = (globalId.hashCode() & 0x7fffffff) % stripes.length;
+        final AtomicInteger stripeQueued = stripePending[stripe];
+        boolean cancel = cn.code == ContainerNotification.CANCEL_NOTIFICATION;
+        if (stripeQueued.get() >= (cancel ? 2 * MAX_PENDING_PER_STRIPE : MAX_PENDING_PER_STRIPE)) {
+            latest.remove(key, update);
+            (cancel ? shedCancels : shedPosts).incrementAndGet();
+            Log.w(TAG, "Too many pending notifications; dropping update of " + globalId);
+            return;
+        }
+        stripeQueued.incrementAndGet();
+
+        int queued = pending.incrementAndGet();
+        if (queued > maxPending)
+            maxPending = queued;
+
+        stripes[stripe].schedule(new Runnable() {
+            @Override
+            public void run() {
+                Update update = latest.remove(key);
+                stripeQueued.decrementAndGet();
+                pending.decrementAndGet();
+                try {
+                    render(update.sourceId, update.sourceColor, update.globalId, update.cn);
+                }
+                catch (Exception e) {
+                    Log.e(TAG, "Rendering notification " + update.globalId + " failed", e);
+                }
+            }
+        }, TrustmeProperties.getCoalesceMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Update {
+        final String sourceId;
+        final String sourceColor;
+        final String globalId;
+        final ContainerNotification cn;
+
+        Update(String sourceId, String sourceColor, String globalId, ContainerNotification cn) {
+            this.sourceId = sourceId;
+            this.sourceColor = sourceColor;
+            this.globalId = globalId;
+            this.cn = cn;
+        }
+    }
+
+    private void render(String sourceId, String sourceColor, String globalId, ContainerNotification cn) {
+        if (cn.code == ContainerNotification.CANCEL_NOTIFICATION) {
+            Log.d(TAG, "Canceling trustme notification "
+                    + "{tag:" + globalId
+                    + ", id:" + cn.id
+                    + ", timestamp: " + cn.timestamp
+                    + "}");
+            notificationManager.cancel(globalId, cn.id);
+            return;
+        }
+        if (cn.code != ContainerNotification.POST_NOTIFICATION)
+            return;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        TrustmeNotificationManager tnm = TrustmeNotificationManager.getInstance(context);
+        Notification tn = tnm.createNotificationFromMessage(sourceId, sourceColor, cn);
+        if (tn == null) {
+            Log.d(TAG, "Could not create trustme notification from message; ignoring");
+            return;
+        }
+        long built = SystemClock.elapsedRealtimeNanos();
+
+        // Updates replace the previous notification in place (see
+        // TrustmeStandardNotificationBuilder.getNotification()).
+        try {
+            notificationManager.notify(globalId, cn.id, tn);
+        }
+        finally {
+            // The notification has been parceled; its bitmaps may be reused now.
+            tnm.releaseNotification(tn);
+        }
+        record(built - start, SystemClock.elapsedRealtimeNanos() - built);
+    }
+
+    private synchronized void record(long renderNanos, long notifyNanos) {
+        rendered++;
+        renderTimeUs += renderNanos / 1000;
+        notifyCalls++;
+        notifyTimeUs += notifyNanos / 1000;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("notification renderer:");
+        pw.println("  stripes: " + stripes.length + ", pending: " + pending.get()
+                + " (max " + maxPending + ")");
+        pw.println("  coalescing window: " + TrustmeProperties.getCoalesceMs() + " ms, skipped renders: " + skipped.get());
+        pw.println("  shed updates (max " + MAX_PENDING_PER_STRIPE + " pending per stripe): "
+                + shedPosts.get() + " posts, " + shedCancels.get() + " cancels");
+        pw.println("  rendered: " + rendered + ", avg time: "
+                + (rendered > 0 ? renderTimeUs / rendered : 0) + " us");
+        pw.println("  notify calls: " + notifyCalls + ", avg time: "
+                + (notifyCalls > 0 ? notifyTimeUs / notifyCalls : 0) + " us");
+    }
+}
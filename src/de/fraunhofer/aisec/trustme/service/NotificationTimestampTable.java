@@ -0,0 +1,245 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import android.os.SystemClock;
+
+/**
+ * Remembers the timestamp of the last notify/cancel operation done for each globalId, so
+ * that updates overtaken by newer ones are ignored (see ServiceReceiver).
+ *
+ * The table is an open-addressing hash table with linear probing over a 64-bit hash of
+ * the globalId. Apps choose their tags, so colliding hashes can be crafted; the globalId
+ * itself is stored and compared as well, so that the updates of a notification can
+ * never be taken for those of another one. Its size is bounded:
+ *  - an entry of a canceled notification is dropped once CANCEL_TTL_MS passed without
+ *    further updates, after which a late update of it cannot arrive anymore,
+ *  - any other entry is dropped after LIVE_TTL_MS without updates,
+ *  - and if the table is full nevertheless, the least recently updated quarter of the
+ *    entries is dropped.
+ * A dropped entry only means that the next update of that globalId is accepted whatever
+ * its timestamp is.
+ */
+public class NotificationTimestampTable {
+    private static final long CANCEL_TTL_MS = 60 * 1000;
+    private static final long LIVE_TTL_MS = 6 * 60 * 60 * 1000;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 8192; // slots; at most half of them are used
+    // Expired entries are searched for after this many updates.
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte CANCELED = 2;
+    private static final byte REMOVED = 3; // tombstone
+
+    private long[] keys;
+    private String[] ids;
+    private long[] timestamps;
+    private long[] updatedAt;
+    private byte[] states;
+    private int size = 0;
+    private int tombstones = 0;
+    private int updatesSinceSweep = 0;
+
+    // Statistics printed by dump().
+    private long expired = 0;
+    private long evicted = 0;
+
+    public NotificationTimestampTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    // Returns the 64-bit FNV-1a hash of globalId.
+    private static long keyOf(String globalId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < globalId.length(); i++) {
+            hash ^= globalId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Records timestamp for globalId if it is newer than the one recorded last.
+     *
+     * @return false if the update is not newer and has to be ignored, true otherwise
+     */
+    public synchronized boolean update(String globalId, long timestamp, boolean cancel) {
+        long now = SystemClock.elapsedRealtime();
+        if (++updatesSinceSweep >= SWEEP_INTERVAL)
+            sweep(now);
+
+        long key = keyOf(globalId);
+        int slot = find(key, globalId);
+        if (slot >= 0 && !isExpired(slot, now)) {
+            if (timestamp <= timestamps[slot])
+                return false;
+        }
+        else if (slot < 0) {
+            slot = insert(key, globalId, now);
+        }
+
+        timestamps[slot] = timestamp;
+        updatedAt[slot] = now;
+        states[slot] = cancel ? CANCELED : LIVE;
+        return true;
+    }
+
+    /**
+     * Returns the timestamp last recorded for globalId, or 0 if there is none.
+     */
+    public synchronized long get(String globalId) {
+        int slot = find(keyOf(globalId), globalId);
+        if (slot < 0 || isExpired(slot, SystemClock.elapsedRealtime()))
+            return 0;
+        return timestamps[slot];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        ids = new String[capacity];
+        timestamps = new long[capacity];
+        updatedAt = new long[capacity];
+        states = new byte[capacity];
+        size = 0;
+        tombstones = 0;
+    }
+
+    private int indexOf(long key) {
+        // Fold the upper bits in, as the table uses the lower bits only.
+        int h = (int) (key ^ (key >>> 32));
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    private int find(long key, String globalId) {
+        int mask = keys.length - 1;
+        for (int i = indexOf(key); states[i] != EMPTY; i = (i + 1) & mask) {
+            if (states[i] != REMOVED && keys[i] == key && ids[i].equals(globalId))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean isExpired(int slot, long now) {
+        long ttl = states[slot] == CANCELED ? CANCEL_TTL_MS : LIVE_TTL_MS;
+        return now - updatedAt[slot] > ttl;
+    }
+
+    private int insert(long key, String globalId, long now) {
+        if ((size + tombstones + 1) * 2 > keys.length) {
+            sweep(now);
+            if (size * 2 >= MAX_CAPACITY)
+                evictOldest(size / 4);
+            if ((size + tombstones + 1) * 2 > keys.length)
+                rehash(size * 4 > keys.length ? Math.min(keys.length * 2, MAX_CAPACITY) : keys.length);
+        }
+
+        int mask = keys.length - 1;
+        int i = indexOf(key);
+        while (states[i] == LIVE || states[i] == CANCELED)
+            i = (i + 1) & mask;
+        if (states[i] == REMOVED)
+            tombstones--;
+        keys[i] = key;
+        ids[i] = globalId;
+        states[i] = LIVE;
+        size++;
+        return i;
+    }
+
+    private void remove(int slot) {
+        states[slot] = REMOVED;
+        ids[slot] = null;
+        size--;
+        tombstones++;
+    }
+
+    private void sweep(long now) {
+        updatesSinceSweep = 0;
+        for (int i = 0; i < states.length; i++) {
+            if ((states[i] == LIVE || states[i] == CANCELED) && isExpired(i, now)) {
+                remove(i);
+                expired++;
+            }
+        }
+    }
+
+    private void evictOldest(int count) {
+        long[] times = new long[size];
+        int n = 0;
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == LIVE || states[i] == CANCELED)
+                times[n++] = updatedAt[i];
+        }
+        Arrays.sort(times, 0, n);
+        long threshold = times[Math.max(0, Math.min(count, n) - 1)];
+
+        for (int i = 0; i < states.length; i++) {
+            if ((states[i] == LIVE || states[i] == CANCELED) && updatedAt[i] <= threshold) {
+                remove(i);
+                evicted++;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        String[] oldIds = ids;
+        long[] oldTimestamps = timestamps;
+        long[] oldUpdatedAt = updatedAt;
+        byte[] oldStates = states;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldStates.length; j++) {
+            if (oldStates[j] != LIVE && oldStates[j] != CANCELED)
+                continue;
+            int i = indexOf(oldKeys[j]);
+            while (states[i] != EMPTY)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            ids[i] = oldIds[j];
+            timestamps[i] = oldTimestamps[j];
+            updatedAt[i] = oldUpdatedAt[j];
+            states[i] = oldStates[j];
+            size++;
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("notification timestamps:");
+        pw.println("  entries: " + size + ", slots: " + keys.length
+                + " (" + keys.length * (8 + 8 + 8 + 1 + 4) + " bytes without the globalIds)");
+        pw.println("  expired: " + expired + ", evicted: " + evicted);
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
+import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
+import de.fraunhofer.aisec.trustme.service.notification.NotificationDeltaEncoder;
+
+/**
+ * The OutboundScheduler replaces the single Sender queue with three lanes and writes the
+ * queued messages to cmld on its own thread:
+ *
+ * - control: user-visible commands like container switches, call state, shutdown
+ * - state: device state (boot completed, airplane mode, wifi, connectivity, ...)
+ * - bulk: everything that may carry large payloads, i.e. notifications
+ *
+ * The writer always drains the control lane first, then the state lane and only then
+ * the bulk lane, so a container switch never waits behind queued notification pixels
+ * (it may still wait for the one message being written at that moment). Messages within
+ * a lane are written in the order they have been queued.
+ *
+ * Messages that pile up while a write is in progress are written together: they are
+ * framed into one buffer (up to BATCH_BYTE_BUDGET bytes) and handed to the socket with
+ * a single write, which saves syscalls and wake-ups of cmld during bursts. The writer
+ * never waits for further messages, so a message queued on its own is not delayed.
+ *
+ * The amount of queued data is bounded by a byte budget (to.trustme.outbound.budget).
+ * A notification that is still queued is replaced by a newer POST or CANCEL for the same
+ * package/tag/id, and once the budget is exceeded, queued notification posts are shed
+ * according to the configured policy (to.trustme.outbound.shedding):
+ *
+ * - drop-oldest (default): drop the oldest queued posts until the new message fits
+ * - drop-newest: reject the new post
+ *
+ * Control and state messages as well as notification cancels are never shed; they are
+ * small, and dropping a cancel would leave a stale notification in other containers.
+ *
+ * Right before a notification is written, the NotificationDeltaEncoder may turn it into
+ * a delta update. This is done here (and not when the message is queued) since only
+ * the writer knows which notifications actually made it to cmld, in which order. The
+ * encoder is reset when the connection is lost or a write fails, and messages taken
+ * for a connection that has been detached in the meantime are dropped unencoded.
+ *
+ * The scheduler outlives single connections. The CmldConnectionSupervisor attaches the
+ * socket's output stream after each connect and detaches it when the connection is lost.
+ */
+public class OutboundScheduler implements ICmldSender, Runnable {
+    private static final String TAG = "TrustmeService.OutboundScheduler";
+
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_STATE = 1;
+    public static final int LANE_BULK = 2;
+    private static final int LANE_COUNT = 3;
+    private static final String[] LANE_NAMES = { "control", "state", "bulk" };
+
+    private static final int BATCH_BYTE_BUDGET = 64*1024;
+    private static final int MAX_BATCH_MESSAGES = 64;
+
+    private static class Entry {
+        ServiceToCmldMessage message;
+        int frameSize;
+        final String key; // notification key for coalescing; null for other messages
+        final long enqueueTime;
+
+        Entry(ServiceToCmldMessage message) {
+            this.message = message;
+            this.frameSize = CmldFraming.frameSize(message);
+            this.key = notificationKeyOf(message);
+            this.enqueueTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isSheddable() {
+            return key != null && message.notification.code != ContainerNotification.CANCEL_NOTIFICATION;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Entry>[] lanes;
+    private OutputStream out = null; // guarded by lock; null while disconnected
+    private final HashMap<String, Entry> queuedNotifications = new HashMap<String, Entry>(); // guarded by lock
+    private int queuedBytes = 0; // guarded by lock
+
+    // Only used by the writer thread.
+    private final byte[] batchBuffer = new byte[BATCH_BYTE_BUDGET];
+
+    private final NotificationDeltaEncoder deltaEncoder = new NotificationDeltaEncoder();
+
+    // Statistics printed by dump(); guarded by lock.
+    private final long[] sent = new long[LANE_COUNT];
+    private final long[] maxWaitMs = new long[LANE_COUNT];
+    private long dropped = 0;
+    private long writeErrors = 0;
+    private long writes = 0;
+    private int maxBatchMessages = 0;
+    private long coalesced = 0;
+    private long shed = 0;
+    private int maxQueuedBytes = 0;
+    private long attachTime = 0;
+    private boolean written = false; // since attach()
+    private long firstWriteTime = -1; // over all connections
+    private long firstWriteLatencyMs = -1; // after the last attach()
+
+    @SuppressWarnings("unchecked")
+    public OutboundScheduler() {
+        lanes = new ArrayDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++)
+            lanes[i] = new ArrayDeque<Entry>();
+    }
+
+    private static String notificationKeyOf(ServiceToCmldMessage message) {
+        if (message.code != ServiceToCmldMessage.NOTIFICATION || message.notification == null)
+            return null;
+        ContainerNotification cn = message.notification;
+        return cn.pkgName + "." + cn.tag + "." + cn.id;
+    }
+
+    /**
+     * Returns the lane a message is scheduled in, based on its code.
+     */
+    public static int laneOf(ServiceToCmldMessage message) {
+        switch (message.code) {
+            case ServiceToCmldMessage.SWITCH_CONTAINER:
+            case ServiceToCmldMessage.CALL_ACTIVE:
+            case ServiceToCmldMessage.CALL_HANGUP:
+            case ServiceToCmldMessage.SHUTDOWN:
+            case ServiceToCmldMessage.MASTER_CLEAR:
+            case ServiceToCmldMessage.SUSPEND_COMPLETED:
+            case ServiceToCmldMessage.RESUME_COMPLETED:
+                return LANE_CONTROL;
+
+            case ServiceToCmldMessage.NOTIFICATION:
+                return LANE_BULK;
+
+            default:
+                return LANE_STATE;
+        }
+    }
+
+    public void start() {
+        Thread writer = new Thread(this, "TrustmeService.OutboundScheduler");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Starts writing queued messages to the given stream.
+     */
+    public void attach(OutputStream out) {
+        synchronized (lock) {
+            this.out = out;
+            attachTime = SystemClock.elapsedRealtime();
+            written = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops writing to the current stream. Messages still queued for the lost connection
+     * are dropped.
+     */
+    public void detach() {
+        synchronized (lock) {
+            out = null;
+            for (ArrayDeque<Entry> lane : lanes) {
+                dropped += lane.size();
+                lane.clear();
+            }
+            queuedNotifications.clear();
+            queuedBytes = 0;
+            // We do not know which notifications the next receivers have seen.
+            deltaEncoder.reset();
+        }
+    }
+
+    /**
+     * Makes the next notifications carry their icons in full again, since a container that
+     * has not seen them has shown up (see NotificationDeltaDecoder.SourceListener).
+     */
+    public void onNewReceiver() {
+        deltaEncoder.forgetIcons();
+    }
+
+    @Override
+    public void sendMessage(ServiceToCmldMessage message) {
+        if (message == null)
+            return;
+
+        Entry entry = new Entry(message);
+        synchronized (lock) {
+            if (out == null) {
+                dropped++;
+                Log.d(TAG, "Not connected to cmld; dropping message with code " + message.code);
+                return;
+            }
+
+            if (entry.key != null) {
+                // Replace a notification for the same key that has not been written yet.
+                Entry queued = queuedNotifications.get(entry.key);
+                if (queued != null) {
+                    int growth = entry.frameSize - queued.frameSize;
+                    if (growth > 0 && !shedLocked(entry, growth))
+                        return; // the queued version is written instead
+                    queuedBytes += growth;
+                    queued.message = entry.message;
+                    queued.frameSize = entry.frameSize;
+                    coalesced++;
+                    if (queuedBytes > maxQueuedBytes)
+                        maxQueuedBytes = queuedBytes;
+                    return;
+                }
+            }
+
+            if (!shedLocked(entry, entry.frameSize))
+                return;
+
+            if (entry.key != null)
+                queuedNotifications.put(entry.key, entry);
+            lanes[laneOf(message)].addLast(entry);
+            queuedBytes += entry.frameSize;
+            if (queuedBytes > maxQueuedBytes)
+                maxQueuedBytes = queuedBytes;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Makes room for incoming bytes of the given entry, which is either queued anew or
+     * replaces the queued notification with the same key, according to the shedding
+     * policy. Returns false if the entry must not be queued.
+     */
+    private boolean shedLocked(Entry entry, int incoming) {
+        int budget = TrustmeProperties.getOutboundBudget();
+        if (queuedBytes + incoming <= budget)
+            return true;
+
+        if (TrustmeProperties.isShedNewest()) {
+            if (entry.isSheddable() && !lanes[LANE_BULK].isEmpty()) {
+                shed++;
+                Log.d(TAG, "Outbound queue exceeds budget; dropping new notification " + entry.key);
+                return false;
+            }
+            return true;
+        }
+
+        Iterator<Entry> it = lanes[LANE_BULK].iterator();
+        while (queuedBytes + incoming > budget && it.hasNext()) {
+            Entry queued = it.next();
+            if (!queued.isSheddable() || queued.key.equals(entry.key))
+                continue; // the entry with the same key is about to be replaced
+            it.remove();
+            queuedNotifications.remove(queued.key);
+            queuedBytes -= queued.frameSize;
+            shed++;
+            Log.d(TAG, "Outbound queue exceeds budget; dropping queued notification " + queued.key);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Entry> batch = new ArrayList<Entry>(MAX_BATCH_MESSAGES);
+
+        for (;;) {
+            OutputStream stream;
+            int generation;
+
+            synchronized (lock) {
+                Entry entry;
+                while (out == null || (entry = pollLocked()) == null) {
+                    try {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        // empty
+                    }
+                }
+                stream = out;
+                // Reset by detach() under the lock, so this is the encoder state of stream.
+                generation = deltaEncoder.getGeneration();
+
+                // Everything that has been queued in the meantime (e.g., while we were
+                // writing the previous batch) joins this batch as long as it fits into
+                // the byte budget. A message queued on its own is written right away.
+                batch.add(entry);
+                int batchSize = entry.frameSize;
+                while (batchSize <= BATCH_BYTE_BUDGET && batch.size() < MAX_BATCH_MESSAGES) {
+                    Entry next = peekLocked();
+                    if (next == null || batchSize + next.frameSize > BATCH_BYTE_BUDGET)
+                        break;
+                    batch.add(pollLocked());
+                    batchSize += next.frameSize;
+                }
+            }
+
+            writeBatch(stream, generation, batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Frames all messages of the batch into the batch buffer and writes them with as few
+     * writes as possible, usually one. A message too large for the batch buffer is always
+     * written on its own. Notifications are delta encoded for the given encoder generation;
+     * if the stream has been detached since, they are dropped.
+     */
+    private void writeBatch(OutputStream stream, int generation, ArrayList<Entry> batch) {
+        int length = 0;
+        int failed = 0;
+        int stale = 0;
+        int batchWrites = 0;
+
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ServiceToCmldMessage message = batch.get(i).message;
+                int frameSize;
+                try {
+                    if (message.code == ServiceToCmldMessage.NOTIFICATION
+                            && !deltaEncoder.encode(message.notification, generation)) {
+                        batch.set(i, null);
+                        stale++;
+                        continue;
+                    }
+                    frameSize = CmldFraming.frameSize(message);
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Encoding message with code " + message.code + " failed: " + e.getMessage());
+                    batch.set(i, null);
+                    failed++;
+                    continue;
+                }
+
+                if (length > 0 && length + frameSize > batchBuffer.length) {
+                    stream.write(batchBuffer, 0, length);
+                    batchWrites++;
+                    length = 0;
+                }
+                if (frameSize > batchBuffer.length) {
+                    stream.write(CmldFraming.encode(message));
+                    batchWrites++;
+                }
+                else {
+                    length += CmldFraming.encode(message, batchBuffer, length);
+                }
+            }
+            if (length > 0) {
+                stream.write(batchBuffer, 0, length);
+                batchWrites++;
+            }
+            stream.flush();
+        }
+        catch (IOException e) {
+            // A broken connection is detected (and handled) by the ServiceReceiver's
+            // read loop; we simply drop the messages here.
+            Log.e(TAG, "Writing " + (batch.size() - failed - stale) + " message(s) failed: " + e.getMessage());
+            // Some of the notifications may have been recorded as sent without having been
+            // written; send everything in full again.
+            deltaEncoder.reset();
+            synchronized (lock) {
+                writeErrors += batch.size() - stale;
+                dropped += stale;
+            }
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (stale > 0)
+            Log.d(TAG, "Dropping " + stale + " notification(s) taken for a detached connection");
+        synchronized (lock) {
+            if (stream == out && !written && batch.size() > failed + stale) {
+                written = true;
+                firstWriteLatencyMs = now - attachTime;
+                if (firstWriteTime < 0)
+                    firstWriteTime = now;
+                Log.d(TAG, "Wrote first message " + firstWriteLatencyMs + " ms after connecting");
+            }
+            writeErrors += failed;
+            dropped += stale;
+            writes += batchWrites;
+            if (batch.size() > maxBatchMessages)
+                maxBatchMessages = batch.size();
+            for (Entry entry : batch) {
+                if (entry == null)
+                    continue;
+                int lane = laneOf(entry.message);
+                long waitMs = now - entry.enqueueTime;
+                sent[lane]++;
+                if (waitMs > maxWaitMs[lane])
+                    maxWaitMs[lane] = waitMs;
+            }
+        }
+    }
+
+    /**
+     * Returns the time (SystemClock.elapsedRealtime()) the first message has been written
+     * to cmld, or -1 if none has been written yet.
+     */
+    public long getFirstWriteTime() {
+        synchronized (lock) {
+            return firstWriteTime;
+        }
+    }
+
+    private Entry peekLocked() {
+        for (ArrayDeque<Entry> lane : lanes) {
+            Entry entry = lane.peekFirst();
+            if (entry != null)
+                return entry;
+        }
+        return null;
+    }
+
+    private Entry pollLocked() {
+        for (ArrayDeque<Entry> lane : lanes) {
+            Entry entry = lane.pollFirst();
+            if (entry != null) {
+                if (entry.key != null)
+                    queuedNotifications.remove(entry.key);
+                queuedBytes -= entry.frameSize;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (lock) {
+            pw.println("outbound scheduler:");
+            pw.println("  attached: " + (out != null)
+                    + ", first write after attach: " + firstWriteLatencyMs + " ms");
+            for (int i = 0; i < LANE_COUNT; i++) {
+                pw.println("  lane " + LANE_NAMES[i] + ": queued " + lanes[i].size()
+                        + ", sent " + sent[i]
+                        + ", max queueing delay " + maxWaitMs[i] + " ms");
+            }
+            long total = 0;
+            for (long n : sent)
+                total += n;
+            pw.println("  socket writes: " + writes
+                    + ", messages per write: avg " + (writes > 0 ? (float) total / writes : 0)
+                    + ", max " + maxBatchMessages);
+            pw.println("  queued: " + queuedBytes + " bytes (max " + maxQueuedBytes
+                    + ", budget " + TrustmeProperties.getOutboundBudget()
+                    + ", shedding " + (TrustmeProperties.isShedNewest() ? "drop-newest" : "drop-oldest") + ")");
+            pw.println("  coalesced notifications: " + coalesced + ", shed notifications: " + shed);
+            pw.println("  dropped while disconnected: " + dropped);
+            pw.println("  write errors: " + writeErrors);
+        }
+        deltaEncoder.dump(pw);
+    }
+}
@@ -23,6 +23,7 @@
 
 package de.fraunhofer.aisec.trustme.service;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
@@ -50,10 +51,10 @@ import android.os.UserHandle;
 import android.net.wifi.WifiManager;
 import android.provider.Settings;
 
+import de.fraunhofer.aisec.trustme.service.notification.NotificationDeltaDecoder;
 import de.fraunhofer.aisec.trustme.service.notification.TrustmeNotificationManager;
 
 import de.fraunhofer.aisec.trustme.cmlcom.Receiver;
-import de.fraunhofer.aisec.trustme.cmlcom.Sender;
 
 import com.google.protobuf.nano.MessageNano;
 import de.fraunhofer.aisec.trustme.service.CService.CmldToServiceMessage;
@@ -66,38 +67,96 @@ import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
 import de.fraunhofer.aisec.trustme.service.R;
 
 /**
- * This class handles protobuf messages received from cmld.
+ * This class handles protobuf messages received from cmld. A new ServiceReceiver is
+ * created by the CmldConnectionSupervisor for every connection to cmld.
+ *
+ * Control messages are handled right away on the reading thread. Notifications are
+ * checked and restored from delta updates here, but rendered and posted by the
+ * NotificationRenderer.
  */
 public class ServiceReceiver extends Receiver {
     private static final String TAG = "TrustmeService.ServiceReceiver";
+    private final DataInputStream socketInputStream;
+    private final FrameBufferPool frameBufferPool;
     private final Context context;
     private final PowerManager powerManager;
-    private final NotificationManager notificationManager;
-    private final Sender sender;
+    private final NotificationRenderer renderer;
+    private final NotificationDeltaDecoder deltaDecoder;
+    private final ICmldSender sender;
     //private final WallpaperHandler wallpaperHandler;
     private final WifiManager wifiManager;
-    private HashMap<String, Long> notificationTimestamps;
+    private final NotificationTimestampTable notificationTimestamps;
 
     public ServiceReceiver(
         final Context context,
         InputStream socketInputStream,
+        final FrameBufferPool frameBufferPool,
         final PowerManager powerManager,
-        final NotificationManager notificationManager,
+        final NotificationRenderer renderer,
+        final NotificationDeltaDecoder deltaDecoder,
+        final NotificationTimestampTable notificationTimestamps,
         //final WallpaperHandler wallpaperHandler,
-        Sender sender) {
+        ICmldSender sender) {
             super(socketInputStream);
+            this.socketInputStream = new DataInputStream(socketInputStream);
+            this.frameBufferPool = frameBufferPool;
             this.context = context;
             this.powerManager = powerManager;
-            this.notificationManager = notificationManager;
+            this.renderer = renderer;
+            this.deltaDecoder = deltaDecoder;
             this.sender = sender;
             //this.wallpaperHandler = wallpaperHandler;
             this.wifiManager = (WifiManager) this.context.getSystemService(Context.WIFI_SERVICE);
-            this.notificationTimestamps = new HashMap<String, Long>();
+            this.notificationTimestamps = notificationTimestamps;
+    }
+
+    /**
+     * Reads length-prefixed messages from cmld and handles them until the connection is
+     * lost. In contrast to the generic Receiver run loop, we return once reading from the
+     * socket fails so that the CmldConnectionSupervisor is able to reconnect.
+     *
+     * Frames are read into buffers from the FrameBufferPool and parsed in place, so we do
+     * not allocate a new (possibly several MB large) array for every received frame. Note
+     * that protobuf-nano copies bytes fields while parsing; the parsed message thus does
+     * not reference the pooled buffer and the buffer can be released right away.
+     */
+    @Override
+    public void run() {
+        for (;;) {
+            byte[] buffer = null;
+            int length;
+            try {
+                length = CmldFraming.readHeader(socketInputStream);
+                buffer = frameBufferPool.acquire(length);
+                socketInputStream.readFully(buffer, 0, length);
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Reading from cmld socket failed: " + e.getMessage());
+                return;
+            }
+
+            try {
+                CmldToServiceMessage message;
+                try {
+                    message = MessageNano.mergeFrom(new CmldToServiceMessage(), buffer, 0, length);
+                }
+                finally {
+                    frameBufferPool.release(buffer);
+                }
+                handleMessage(message);
+            }
+            catch (Exception e) {
+                exceptionHandler(e);
+            }
+        }
     }
 
     @Override
     protected void handleMessage(byte[] encodedMessage) throws IOException {
-        CService.CmldToServiceMessage message = CService.CmldToServiceMessage.parseFrom(encodedMessage);
+        handleMessage(CmldToServiceMessage.parseFrom(encodedMessage));
+    }
+
+    private void handleMessage(CmldToServiceMessage message) {
         // Logging message.toString() leads to blocking behaviour in case of
         // large byte fields
         Log.d(TAG, "Handling received message");
@@ -157,8 +216,9 @@ public class ServiceReceiver extends Receiver {
                 }
 
                 String globalId = message.sourceId + "." + cn.pkgName + "." + cn.tag;
-                long lastTimestamp = notificationTimestamps.containsKey(globalId) ? notificationTimestamps.get(globalId) : 0;
-                if (cn.timestamp <= lastTimestamp) {
+                if (!notificationTimestamps.update(globalId, cn.timestamp,
+                        cn.code == ContainerNotification.CANCEL_NOTIFICATION)) {
+                    long lastTimestamp = notificationTimestamps.get(globalId);
                     Log.d(TAG, "Incoming notification ignored since its timestamp"
                             + " (" + cn.timestamp + ") "
                             + "is older than timestamp"
@@ -171,9 +231,10 @@ public class ServiceReceiver extends Receiver {
                             + "}");
                     break;
                 }
-                else { // update list of most recent timestamps to timestamp of current notification
-                    notificationTimestamps.put(globalId, cn.timestamp);
-                }
+
+                // Restore delta updates (see NotificationDeltaEncoder) to full notifications.
+                if (!deltaDecoder.apply(message.sourceId, cn))
+                    break;
 
                 if (cn.code == ContainerNotification.POST_NOTIFICATION) {
                     if (cn.customNotificationHeight == 0) {
@@ -199,34 +260,10 @@ public class ServiceReceiver extends Receiver {
                                 + ", custom notification height:" + cn.customNotificationHeight
                                 + "}");
                     }
-                    TrustmeNotificationManager tnm = new TrustmeNotificationManager(context);
-                    Notification tn = tnm.createNotificationFromMessage(message.sourceId, message.sourceColor, cn);
-
-                    // We first post a dummy notification with the same tag (globalId) and id (cn.id) as
-                    // the real trustme notification (tn) in order to "reset" the trustme notification
-                    // to a "proper state". Without this trick, Android does not seem to be able to handle
-                    // updated trustme notifications correctly (likely because we use manually altered
-                    // RemoteViews) and wrongly overlays the updated notifications. Note that this dummy
-                    // notification is replaced so quickly by the real trustme notification that it is
-                    // not really visible to the user.
-                    Notification dummyNotification = new Notification.Builder(context)
-                            .setContentTitle(".")
-                            .setContentText(".")
-                            .setSmallIcon(R.drawable.ic_dialog_info)
-                            .build();
-                    notificationManager.notify(globalId, cn.id, dummyNotification);
-
-                    // Finally, post the actual trustme notification (replacing the previously posted dummy notification).
-                    notificationManager.notify(globalId, cn.id, tn);
-                }
-                else if (cn.code == ContainerNotification.CANCEL_NOTIFICATION) {
-                    Log.d(TAG, "Canceling trustme notification "
-                            + "{tag:" + globalId
-                            + ", id:" + cn.id
-                            + ", timestamp: " + cn.timestamp
-                            + "}");
-                    notificationManager.cancel(globalId, cn.id);
                 }
+
+                // Rendering and posting is done by the NotificationRenderer, ordered per globalId.
+                renderer.submit(message.sourceId, message.sourceColor, globalId, cn);
                 break;
 
             case CmldToServiceMessage.AIRPLANE_MODE_CHANGED:
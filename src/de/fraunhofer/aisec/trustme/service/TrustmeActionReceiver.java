@@ -31,12 +31,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.util.Log;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Parcel;
 import java.util.Properties;
 
 import de.fraunhofer.aisec.trustme.service.notification.TrustmeNotificationManager;
 
-import de.fraunhofer.aisec.trustme.cmlcom.Sender;
 import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
 import de.fraunhofer.aisec.trustme.Container;
 import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
@@ -51,7 +51,7 @@ import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
  */
 public class TrustmeActionReceiver extends BroadcastReceiver {
     private static final String TAG = "TrustmeService";
-    private final Sender sender;
+    private final ICmldSender sender;
 
     // The permission required by broadcasters to send the following intents to us.
     public static final String broadcastPermission = "de.fraunhofer.aisec.trustme.service.permission.SEND_INTENTS";
@@ -75,7 +75,7 @@ public class TrustmeActionReceiver extends BroadcastReceiver {
     // Sent by TrustmeActionReceiver when the device/container is to be shut down.
     private static final String ACTION_REQUEST_SHUTDOWN = "android.intent.action.ACTION_REQUEST_SHUTDOWN";
 
-    public TrustmeActionReceiver(Sender sender) {
+    public TrustmeActionReceiver(ICmldSender sender) {
         super();
         this.sender = sender;
     }
@@ -108,8 +108,16 @@ public class TrustmeActionReceiver extends BroadcastReceiver {
             Log.d(TAG, "TrustmeActionReceiver is going to notify cmld about a new notification");
             message.code = ServiceToCmldMessage.NOTIFICATION;
 
-            TrustmeNotificationManager tnm = new TrustmeNotificationManager();
+            long cpuStart = Debug.threadCpuTimeNanos();
+            TrustmeNotificationManager tnm = TrustmeNotificationManager.getInstance(context);
             message.notification = tnm.createMessageFromIntent(intent);
+            if (message.notification != null) {
+                sender.sendMessage(message);
+                TrustmeNotificationManager.recordForward(false,
+                        System.nanoTime() - message.notification.timestamp,
+                        Debug.threadCpuTimeNanos() - cpuStart);
+            }
+            return;
         }
         //
         // TRUSTME_CONTAINER_SWITCH_INTENT
@@ -0,0 +1,142 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service;
+
+import android.os.SystemProperties;
+
+/**
+ * The system properties tuning the TrustmeService, read once and re-read whenever system
+ * properties have been changed (and this has been reported to running processes), so that
+ * they need not be queried per message and changes are picked up everywhere alike.
+ */
+public final class TrustmeProperties {
+    private static final String CUSTOM_NOTIFICATION_PROPERTY = "to.trustme.customnotification";
+    private static final String FORCE_BROADCAST_PROPERTY = "to.trustme.notification.broadcast";
+    private static final String CAPTURE_DOWNSAMPLE_PROPERTY = "to.trustme.notification.downsample";
+    private static final String COMPRESS_PROPERTY = "to.trustme.notification.compress";
+    private static final String DELTA_PROPERTY = "to.trustme.notification.delta";
+    private static final String ICON_REFERENCE_PROPERTY = "to.trustme.notification.iconref";
+    private static final String COALESCE_PROPERTY = "to.trustme.notification.coalesce_ms";
+    private static final String PROGRESS_INTERVAL_PROPERTY = "to.trustme.notification.progress_interval_ms";
+    private static final String PROGRESS_STEP_PROPERTY = "to.trustme.notification.progress_step";
+    private static final String BUDGET_PROPERTY = "to.trustme.outbound.budget";
+    private static final String SHEDDING_PROPERTY = "to.trustme.outbound.shedding";
+
+    private static final int DEFAULT_COALESCE_MS = 50;
+    private static final int DEFAULT_PROGRESS_INTERVAL_MS = 1000;
+    private static final int DEFAULT_PROGRESS_STEP = 10;
+    private static final int DEFAULT_BUDGET = 4*1024*1024;
+    private static final String SHED_NEWEST = "drop-newest";
+
+    private static volatile boolean customNotificationsAllowed;
+    private static volatile boolean broadcastForced;
+    private static volatile int captureDownsample;
+    private static volatile boolean compressionEnabled;
+    private static volatile boolean deltaEnabled;
+    private static volatile boolean iconReferenceEnabled;
+    private static volatile int coalesceMs;
+    private static volatile int progressIntervalMs;
+    private static volatile int progressStep;
+    private static volatile int outboundBudget;
+    private static volatile boolean shedNewest;
+
+    static {
+        read();
+        SystemProperties.addChangeCallback(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+    }
+
+    private TrustmeProperties() {
+    }
+
+    private static void read() {
+        customNotificationsAllowed = SystemProperties.getBoolean(CUSTOM_NOTIFICATION_PROPERTY, false);
+        broadcastForced = SystemProperties.getBoolean(FORCE_BROADCAST_PROPERTY, false);
+        captureDownsample = Math.max(1, SystemProperties.getInt(CAPTURE_DOWNSAMPLE_PROPERTY, 1));
+        compressionEnabled = SystemProperties.getBoolean(COMPRESS_PROPERTY, false);
+        deltaEnabled = SystemProperties.getBoolean(DELTA_PROPERTY, false);
+        iconReferenceEnabled = SystemProperties.getBoolean(ICON_REFERENCE_PROPERTY, false);
+        coalesceMs = Math.max(0, SystemProperties.getInt(COALESCE_PROPERTY, DEFAULT_COALESCE_MS));
+        progressIntervalMs = Math.max(0, SystemProperties.getInt(PROGRESS_INTERVAL_PROPERTY, DEFAULT_PROGRESS_INTERVAL_MS));
+        progressStep = Math.max(1, SystemProperties.getInt(PROGRESS_STEP_PROPERTY, DEFAULT_PROGRESS_STEP));
+        outboundBudget = SystemProperties.getInt(BUDGET_PROPERTY, DEFAULT_BUDGET);
+        shedNewest = SHED_NEWEST.equals(SystemProperties.get(SHEDDING_PROPERTY));
+    }
+
+    // Whether custom notifications are forwarded at all.
+    public static boolean areCustomNotificationsAllowed() {
+        return customNotificationsAllowed;
+    }
+
+    // Whether the NotificationListener broadcasts notifications to the TrustmeActionReceiver
+    // although the TrustmeService runs in the same process.
+    public static boolean isBroadcastForced() {
+        return broadcastForced;
+    }
+
+    // Custom notifications are captured at 1/n of their resolution (n >= 1).
+    public static int getCaptureDownsample() {
+        return captureDownsample;
+    }
+
+    public static boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public static boolean isDeltaEnabled() {
+        return deltaEnabled;
+    }
+
+    public static boolean isIconReferenceEnabled() {
+        return iconReferenceEnabled;
+    }
+
+    // Window in which updates of a received notification are coalesced.
+    public static int getCoalesceMs() {
+        return coalesceMs;
+    }
+
+    public static int getProgressIntervalMs() {
+        return progressIntervalMs;
+    }
+
+    // In percentage points.
+    public static int getProgressStep() {
+        return progressStep;
+    }
+
+    // Bytes the OutboundScheduler may queue.
+    public static int getOutboundBudget() {
+        return outboundBudget;
+    }
+
+    // Whether the OutboundScheduler rejects new notifications rather than dropping queued ones.
+    public static boolean isShedNewest() {
+        return shedNewest;
+    }
+}
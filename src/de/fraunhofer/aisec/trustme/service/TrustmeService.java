@@ -23,9 +23,14 @@
 
 package de.fraunhofer.aisec.trustme.service;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.IntentService;
 //import android.app.WallpaperManager;
@@ -34,38 +39,48 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ComponentName;
-import android.net.LocalSocket;
-import android.net.LocalSocketAddress;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiInfo;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import de.fraunhofer.aisec.trustme.service.notification.NotificationListener;
+import de.fraunhofer.aisec.trustme.service.notification.PixelCodec;
+import de.fraunhofer.aisec.trustme.service.notification.TrustmeNotificationManager;
 
-import de.fraunhofer.aisec.trustme.cmlcom.Sender;
 import com.google.protobuf.nano.MessageNano;
 import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
 
 /**
- * The TrustmeService gets started by TrustmeBroadcastReceiver. It sets up
- * the Unix Domain Socket communication and starts the Sender and the Receiver
- * threads which make use of this socket.
+ * The TrustmeService gets started by TrustmeBroadcastReceiver. It registers the
+ * receivers forwarding relevant Android intents to cmld and runs the
+ * CmldConnectionSupervisor, which sets up the Unix Domain Socket communication
+ * (and re-establishes it whenever cmld goes away) and feeds the OutboundScheduler
+ * and the ServiceReceiver which make use of this socket.
  */
 public class TrustmeService extends IntentService {
     private static final String TAG = "TrustmeService";
-    private static final String SOCK_ADDR = "/dev/socket/cml-service";
-    private LocalSocket socket;
-    private InputStream socketInputStream;
-    private OutputStream socketOutputStream;
-    private Sender sender;
-    private ActionReceiver actionReceiver = null;
-    private TrustmeActionReceiver trustmeActionReceiver = null;
+    private CmldConnectionSupervisor supervisor = null;
+    // The supervisor of the running TrustmeService of this process (see getLocalSender()).
+    private static volatile ICmldSender localSender = null;
+    // Registered on a startup thread (see registerReceivers()).
+    private volatile ActionReceiver actionReceiver = null;
+    private volatile TrustmeActionReceiver trustmeActionReceiver = null;
     private NotificationListener notificationListener = null;
-    private final int SOCKET_SEND_BUFFER_SIZE = 1024*1024;
+
+    // Runs the blocking parts of the startup handshake concurrently.
+    private final ExecutorService startupExecutor = Executors.newCachedThreadPool();
+    // The initial count accounts for connecting to cmld and sending the initial state.
+    private final AtomicInteger pendingStartupTasks = new AtomicInteger(1);
+    private boolean initialStateSent = false;
+
+    // Startup timings (in ms after onHandleIntent() has been called) printed by dump().
+    private long startTime;
+    private volatile long readyLatencyMs = -1;
 
     public TrustmeService() {
         super(TAG);
@@ -81,141 +96,170 @@ public class TrustmeService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent _) {
-        try {
-            Log.d(TAG, "TrustmeService is starting");
-            socket = new LocalSocket(LocalSocket.SOCKET_STREAM);
-            Log.d(TAG, "Trying to connect to socket " + SOCK_ADDR);
-            socket.connect(new LocalSocketAddress(SOCK_ADDR, LocalSocketAddress.Namespace.FILESYSTEM));
-            Log.d(TAG, "Successfully connected to socket");
-
-            // Set up input and output streams.
-            socketInputStream = socket.getInputStream();
-            socketOutputStream = socket.getOutputStream();
-
-            // Increase socket send buffer size in order to send moderately large
-            // messages (i.e. wallpaper) without blocking for several seconds.
-            socket.setSendBufferSize(SOCKET_SEND_BUFFER_SIZE); // note: cmld has set the max socket send buffer size to 1 MB
-
-            // Start sender thread.
-            sender = new Sender(socketOutputStream) {
-                @Override
-                protected void exceptionHandler(Exception e) {
-                    Log.e(TAG, "The Sender's run loop threw an exception: " + e.getMessage());
-                    // We don't exit here and let the Sender proceed.
+        Log.d(TAG, "TrustmeService is starting");
+        startTime = SystemClock.elapsedRealtime();
+
+        // Get handle for various system services.
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        //WallpaperManager wallpaperManager = (WallpaperManager) getSystemService(Context.WALLPAPER_SERVICE);
+        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // Start wallpaper handler thread.
+        /*
+        WallpaperHandler wallpaperHandler = new WallpaperHandler(wallpaperManager, supervisor);
+        new Thread(wallpaperHandler).start();
+        */
+
+        supervisor = new CmldConnectionSupervisor(
+                this, // we're a subclass of the Context class
+                powerManager,
+                notificationManager) {
+            @Override
+            protected void onConnected() {
+                // Send various information to cmld. This is repeated after every
+                // reconnect since cmld may have been restarted in the meantime.
+                // BOOT_COMPLETED goes out first; looking up IMEI, MAC and phone number
+                // may block for a while on cold boot and is therefore done concurrently.
+                sendBootCompleted();
+                startupExecutor.execute(new StartupTask() {
+                    @Override
+                    protected void runTask() {
+                        sendImeiMacPhoneno();
+                    }
+                });
+                sendAirplaneMode();
+                sendWifiState();
+                if (!initialStateSent) {
+                    initialStateSent = true;
+                    startupTaskDone();
                 }
-            };
-            new Thread(sender).start();
-
-            // Let sender know about previously set socket send buffer size.
-            sender.setSocketSendBufferSize(SOCKET_SEND_BUFFER_SIZE);
-
-            // Send various information to cmld.
-            sendBootCompleted();
-            sendImeiMacPhoneno();
-            sendAirplaneMode();
-            sendWifiState();
-
-            // Get handle for various system services.
-            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-            //WallpaperManager wallpaperManager = (WallpaperManager) getSystemService(Context.WALLPAPER_SERVICE);
-            NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-            // Start wallpaper handler thread.
-            /*
-            WallpaperHandler wallpaperHandler = new WallpaperHandler(wallpaperManager, sender);
-            new Thread(wallpaperHandler).start();
-            */
-
-            // Start receiver thread.
-            new Thread(new ServiceReceiver(
-                    this, // we're a subclass of the Context class
-                    socketInputStream,
-                    powerManager,
-                    notificationManager,
-                    //wallpaperHandler,
-                    sender)).start();
-
-            // Register a receiver that will watch for relevant Android intents like
-            // MASTER_CLEAR_NOTIFICATION, ACTION_SHUTDOWN, and phone state changes.
-            // The receiver may notify cmld about received actions.
-            if (actionReceiver == null) {
-                actionReceiver = new ActionReceiver(sender);
-                IntentFilter filter = ActionReceiver.createFilter();
-                Intent result = registerReceiver(actionReceiver, filter);
-                Log.d(TAG, "Registering ActionReceiver " + actionReceiver +
-                           " through filter " + filter +
-                           " with result " + result);
-            } else {
-                Log.w(TAG, "Trying to register ActionReceiver more than once");
             }
+        };
 
-            // Register another receiver that will watch for trustme-specific intents
-            // (like container switch requests) and other critical intents. The receiver
-            // may notify cmld about received actions.
-            if (trustmeActionReceiver == null) {
-                trustmeActionReceiver = new TrustmeActionReceiver(sender);
-                IntentFilter filter = TrustmeActionReceiver.createFilter();
-                Intent result = registerReceiver(trustmeActionReceiver, filter, TrustmeActionReceiver.broadcastPermission, null);
-                Log.d(TAG, "Registering TrustmeActionReceiver " + trustmeActionReceiver +
-                           " through filter " + filter +
-                           " with broadcast permission " + TrustmeActionReceiver.broadcastPermission +
-                           " with result " + result);
-            } else {
-                Log.w(TAG, "Trying to register TrustmeActionReceiver more than once");
+        localSender = supervisor;
+
+        // Register the receivers and enable the NotificationListener while we are
+        // connecting to cmld and looking up the device's identity.
+        startupExecutor.execute(new StartupTask() {
+            @Override
+            protected void runTask() {
+                registerReceivers();
             }
+        });
 
-            // Make sure our NotificationListener has access to the broadcasted notifications.
-            enableNotificationListener();
+        // Connect to cmld and handle its messages. This never returns, which is intended
+        // as otherwise we may be more likely to get killed by the lowmemkiller.
+        supervisor.run();
+    }
 
-            // Don't return here as otherwise we may be more likely to get killed by the lowmemkiller.
-            Object waitIndef = new Object();
-            synchronized(waitIndef) {
-                for (;;) {
-                    try {
-                        waitIndef.wait(); // wait indefinitely
-                    }
-                    catch (InterruptedException e) {
-                        // empty
-                    }
-                }
+    /**
+     * Returns the sender of the TrustmeService running in this process, which allows
+     * components of the same process (i.e., the NotificationListener) to send messages to
+     * cmld without broadcasting them to the TrustmeActionReceiver first. Returns null if the
+     * TrustmeService has not been started (yet).
+     */
+    public static ICmldSender getLocalSender() {
+        return localSender;
+    }
+
+    /**
+     * A task of the startup handshake. Once the last of these tasks (including the ones
+     * started by a reconnect before the first startup completed) has finished, we
+     * consider the TrustmeService to be fully ready.
+     */
+    private abstract class StartupTask implements Runnable {
+        StartupTask() {
+            pendingStartupTasks.incrementAndGet();
+        }
+
+        protected abstract void runTask();
+
+        @Override
+        public final void run() {
+            try {
+                runTask();
+            }
+            finally {
+                startupTaskDone();
             }
         }
-        catch (IOException e) {
-            Log.d(TAG, "Exception while initializing TrustmeService: " + e.getMessage());
-            return;
+    }
+
+    private void startupTaskDone() {
+        if (pendingStartupTasks.decrementAndGet() == 0 && readyLatencyMs < 0) {
+            readyLatencyMs = SystemClock.elapsedRealtime() - startTime;
+            Log.d(TAG, "TrustmeService is ready " + readyLatencyMs + " ms after start");
+        }
+    }
+
+    private void registerReceivers() {
+        // Register a receiver that will watch for relevant Android intents like
+        // MASTER_CLEAR_NOTIFICATION, ACTION_SHUTDOWN, and phone state changes.
+        // The receiver may notify cmld about received actions.
+        if (actionReceiver == null) {
+            actionReceiver = new ActionReceiver(supervisor);
+            IntentFilter filter = ActionReceiver.createFilter();
+            Intent result = registerReceiver(actionReceiver, filter);
+            Log.d(TAG, "Registering ActionReceiver " + actionReceiver +
+                       " through filter " + filter +
+                       " with result " + result);
+        } else {
+            Log.w(TAG, "Trying to register ActionReceiver more than once");
         }
+
+        // Register another receiver that will watch for trustme-specific intents
+        // (like container switch requests) and other critical intents. The receiver
+        // may notify cmld about received actions.
+        if (trustmeActionReceiver == null) {
+            trustmeActionReceiver = new TrustmeActionReceiver(supervisor);
+            IntentFilter filter = TrustmeActionReceiver.createFilter();
+            Intent result = registerReceiver(trustmeActionReceiver, filter, TrustmeActionReceiver.broadcastPermission, null);
+            Log.d(TAG, "Registering TrustmeActionReceiver " + trustmeActionReceiver +
+                       " through filter " + filter +
+                       " with broadcast permission " + TrustmeActionReceiver.broadcastPermission +
+                       " with result " + result);
+        } else {
+            Log.w(TAG, "Trying to register TrustmeActionReceiver more than once");
+        }
+
+        // Make sure our NotificationListener has access to the broadcasted notifications.
+        enableNotificationListener();
     }
 
     private void sendBootCompleted() {
         ServiceToCmldMessage message_boot_complete = new ServiceToCmldMessage();
         message_boot_complete.code = ServiceToCmldMessage.BOOT_COMPLETED;
-        sender.sendMessage(message_boot_complete);
+        supervisor.sendMessage(message_boot_complete);
     }
 
     private void sendImeiMacPhoneno() {
         ServiceToCmldMessage message = new ServiceToCmldMessage();
         message.code = ServiceToCmldMessage.IMEI_MAC_PHONENO;
+
+        // Query wifi and telephony in parallel; both may block on cold boot.
+        Future<String> macAddressFuture = startupExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return lookupMacAddress();
+            }
+        });
+
         TelephonyManager telephonyManager =
                 (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
-        WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
-        WifiInfo wifiInfo = null;
         String macAddress = null;
         String imei = null;
         String phoneNumber = null;
-        if (wifiManager != null) {
-            try {
-                wifiInfo = wifiManager.getConnectionInfo();
-            } catch (Exception e) {
-                Log.w(TAG, "Something went wrong when trying to get wifiInfo");
-            }
-        }
-        if (wifiInfo != null) {
-            macAddress = wifiInfo.getMacAddress();
-        }
         if (telephonyManager != null) {
             imei = telephonyManager.getDeviceId();
             phoneNumber = telephonyManager.getLine1Number();
         }
+        try {
+            macAddress = macAddressFuture.get();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while looking up MAC address");
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Something went wrong when looking up MAC address: " + e.getCause());
+        }
         if (imei != null) {
             Log.d(TAG, "IMEI: " + imei);
             message.imei = imei;
@@ -228,7 +272,20 @@ public class TrustmeService extends IntentService {
             Log.d(TAG, "MAC adress " + macAddress);
             message.mac = macAddress;
         }
-        sender.sendMessage(message);
+        supervisor.sendMessage(message);
+    }
+
+    private String lookupMacAddress() {
+        WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        WifiInfo wifiInfo = null;
+        if (wifiManager != null) {
+            try {
+                wifiInfo = wifiManager.getConnectionInfo();
+            } catch (Exception e) {
+                Log.w(TAG, "Something went wrong when trying to get wifiInfo");
+            }
+        }
+        return wifiInfo != null ? wifiInfo.getMacAddress() : null;
     }
 
     // Send Airplane mode state (needed if rebooted while in airplane mode)
@@ -239,7 +296,7 @@ public class TrustmeService extends IntentService {
                 getContentResolver(),
                 Settings.Global.AIRPLANE_MODE_ON, 0) == 1;
         Log.d(TAG, "Sending initial Airplane mode state: " + messageAirplaneMode.airplaneMode);
-        sender.sendMessage(messageAirplaneMode);
+        supervisor.sendMessage(messageAirplaneMode);
     }
 
     private void sendWifiState() {
@@ -249,7 +306,7 @@ public class TrustmeService extends IntentService {
                 getContentResolver(),
                 Settings.Global.WIFI_ON, 0) == 1;
         Log.d(TAG, "Sending initial Wifi state: " + messageWifi.wifiUserEnabled);
-        sender.sendMessage(messageWifi);
+        supervisor.sendMessage(messageWifi);
     }
 
     /**
@@ -277,10 +334,39 @@ public class TrustmeService extends IntentService {
         Settings.Secure.putString(getContentResolver(), "enabled_notification_listeners", enabledListeners);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (supervisor == null) {
+            pw.println("TrustmeService has not been started");
+            return;
+        }
+        pw.println("startup:");
+        // Taken when the first message has actually been written to the socket.
+        long firstWriteTime = supervisor.getFirstWriteTime();
+        pw.println("  time to first message: " + (firstWriteTime >= 0 ? firstWriteTime - startTime : -1) + " ms");
+        pw.println("  time to fully ready: " + readyLatencyMs + " ms");
+        supervisor.dump(pw);
+        PixelCodec.dump(pw);
+        TrustmeNotificationManager.dump(pw);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        Log.d(TAG, "onTrimMemory(" + level + "), dropping cached bitmaps and buffers");
+        TrustmeNotificationManager.onTrimMemory(level);
+        if (supervisor != null)
+            supervisor.onTrimMemory(level);
+    }
+
     @Override
     public void onDestroy () {
         super.onDestroy();
-        unregisterReceiver(actionReceiver);
-        unregisterReceiver(trustmeActionReceiver);
+        localSender = null;
+        startupExecutor.shutdown();
+        if (actionReceiver != null)
+            unregisterReceiver(actionReceiver);
+        if (trustmeActionReceiver != null)
+            unregisterReceiver(trustmeActionReceiver);
     }
 }
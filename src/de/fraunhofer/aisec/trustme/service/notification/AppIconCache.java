@@ -0,0 +1,128 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.res.Configuration;
+
+/**
+ * An LRU cache of the icons extracted from the packages posting notifications (see
+ * TrustmeNotificationManager.extractIcon()), keyed by package, icon resource id and the
+ * configuration the icon has been rasterized for.
+ *
+ * Only the serialized pixels and the dimensions are kept, as that is all that is sent to
+ * cmld. The pixels are shared by all notifications using them and must not be modified.
+ * Entries of a package have to be invalidated when it is replaced or removed.
+ */
+public class AppIconCache {
+    private static final int MAX_ENTRIES = 128;
+    private static final int MAX_BYTES = 4*1024*1024;
+
+    public static class Icon {
+        public final byte[] pixels;
+        public final int width;
+        public final int height;
+
+        public Icon(byte[] pixels, int width, int height) {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final LinkedHashMap<String, Icon> icons = new LinkedHashMap<String, Icon>(16, 0.75f, true);
+    private int bytes = 0;
+
+    // Statistics printed by dump().
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidated = 0;
+
+    /**
+     * Returns the part of the key covering the configuration values icons depend on.
+     */
+    public static String configKeyOf(Configuration config) {
+        return config.densityDpi + ":" + config.uiMode + ":" + config.locale;
+    }
+
+    private static String keyOf(String pkgName, int iconId, String configKey) {
+        return pkgName + '/' + Integer.toHexString(iconId) + '/' + configKey;
+    }
+
+    public synchronized Icon get(String pkgName, int iconId, String configKey) {
+        Icon icon = icons.get(keyOf(pkgName, iconId, configKey));
+        if (icon != null)
+            hits++;
+        else
+            misses++;
+        return icon;
+    }
+
+    public synchronized void put(String pkgName, int iconId, String configKey, Icon icon) {
+        Icon old = icons.put(keyOf(pkgName, iconId, configKey), icon);
+        if (old != null)
+            bytes -= old.pixels.length;
+        bytes += icon.pixels.length;
+
+        Iterator<Icon> it = icons.values().iterator();
+        while ((bytes > MAX_BYTES || icons.size() > MAX_ENTRIES) && it.hasNext()) {
+            bytes -= it.next().pixels.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops all icons of the given package, e.g., after it has been replaced or removed.
+     */
+    public synchronized void invalidate(String pkgName) {
+        String prefix = pkgName + '/';
+        Iterator<Map.Entry<String, Icon>> it = icons.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Icon> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                bytes -= e.getValue().pixels.length;
+                it.remove();
+                invalidated++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        invalidated += icons.size();
+        icons.clear();
+        bytes = 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        long lookups = hits + misses;
+        pw.println("app icon cache:");
+        pw.println("  entries: " + icons.size() + ", bytes: " + bytes + " (max " + MAX_BYTES + ")");
+        pw.println("  hits: " + hits + ", misses: " + misses + ", hit rate: "
+                + (lookups > 0 ? hits * 100 / lookups : 0) + "%, invalidated: " + invalidated);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+
+/**
+ * A pool of mutable ARGB_8888 bitmaps for rendering received notifications. Bitmaps are
+ * kept in power-of-two size classes by their allocation size and handed out again with
+ * Bitmap.reconfigure() to the requested dimensions, so that a notification of a given
+ * size does not allocate a new bitmap every time it is updated.
+ *
+ * A bitmap must only be released once nothing uses it anymore. For bitmaps of posted
+ * notifications this is the case as soon as NotificationManager.notify() has returned,
+ * since the pixels of mutable bitmaps are copied when the notification is parceled.
+ *
+ * The pool retains at most maxRetainedBytes in total. Bitmaps that would exceed this
+ * limit are left to the garbage collector when they are released.
+ */
+public class BitmapPool {
+    private static final int MIN_CLASS_SIZE = 4*1024;
+    private static final int CLASS_COUNT = 14; // up to 32 MB
+    private static final int MAX_BITMAPS_PER_CLASS = 2;
+
+    private final ArrayDeque<Bitmap>[] classes;
+    private final int maxRetainedBytes;
+    private int retainedBytes = 0;
+
+    // Statistics printed by dump().
+    private long hits = 0;
+    private long misses = 0;
+    private long dropped = 0;
+
+    @SuppressWarnings("unchecked")
+    public BitmapPool(int maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        classes = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++)
+            classes[i] = new ArrayDeque<Bitmap>(MAX_BITMAPS_PER_CLASS);
+    }
+
+    // Returns the largest class whose size is not larger than size.
+    private static int classOf(int size) {
+        int c = 0;
+        while (c < CLASS_COUNT - 1 && (MIN_CLASS_SIZE << (c + 1)) <= size)
+            c++;
+        return c;
+    }
+
+    /**
+     * Returns a mutable ARGB_8888 bitmap of the given dimensions, whose content is
+     * undefined.
+     */
+    public Bitmap acquire(int width, int height) {
+        int size = width * height * 4;
+        Bitmap bitmap = null;
+        synchronized (this) {
+            // Bitmaps in the class of size may be too small, all of the next class fit.
+            int c = classOf(size);
+            for (int i = c; i <= c + 1 && i < CLASS_COUNT && bitmap == null; i++) {
+                Iterator<Bitmap> it = classes[i].iterator();
+                while (it.hasNext()) {
+                    Bitmap candidate = it.next();
+                    if (candidate.getAllocationByteCount() >= size) {
+                        it.remove();
+                        retainedBytes -= candidate.getAllocationByteCount();
+                        bitmap = candidate;
+                        break;
+                    }
+                }
+            }
+            if (bitmap != null)
+                hits++;
+            else
+                misses++;
+        }
+
+        if (bitmap == null)
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap obtained by acquire() back to the pool.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+            return;
+        int size = bitmap.getAllocationByteCount();
+        int c = classOf(size);
+        if (classes[c].size() >= MAX_BITMAPS_PER_CLASS || retainedBytes + size > maxRetainedBytes) {
+            dropped++;
+            return;
+        }
+        classes[c].addFirst(bitmap);
+        retainedBytes += size;
+    }
+
+    /**
+     * Drops all retained bitmaps (e.g., on memory pressure).
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> c : classes)
+            c.clear();
+        retainedBytes = 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("bitmap pool:");
+        pw.println("  retained: " + retainedBytes + " bytes (max " + maxRetainedBytes + ")");
+        pw.println("  hits: " + hits + ", misses: " + misses + ", dropped: " + dropped);
+    }
+}
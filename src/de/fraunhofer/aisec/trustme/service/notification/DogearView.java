@@ -23,6 +23,9 @@
 
 package de.fraunhofer.aisec.trustme.service.notification;
 
+import java.io.PrintWriter;
+import java.util.HashMap;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -33,12 +36,22 @@ import android.graphics.drawable.Drawable;
 import android.view.View;
 
 public class DogearView extends View {
+    private static final int BACK_SIDE_COLOR = Color.parseColor("#eeeeee");
+
+    // Containers only use a handful of colors; a rendered dogear is shared by all
+    // notifications of a color (see getBitmap()).
+    private static final int MAX_CACHED_DOGEARS = 16;
+    private static final HashMap<Integer, Bitmap> dogearCache = new HashMap<Integer, Bitmap>();
+
     private int dogearColor;
 
     // Note: the actual dimensions of the dogear are set in trustme_notification_*.xml
     // and the triangle will be scaled accordingly.
     private float internalTriangleSize = 200;
 
+    private final Paint paint = new Paint();
+    private final Path path = new Path();
+
     public DogearView(Context context) {
         this(context, Color.BLACK);
     }
@@ -46,6 +59,12 @@ public class DogearView extends View {
     public DogearView(Context context, int dogearColor) {
         super(context);
         setDogearColor(dogearColor);
+
+        paint.setStyle(Paint.Style.FILL);
+        path.moveTo(internalTriangleSize, internalTriangleSize);
+        path.lineTo(internalTriangleSize, 0);
+        path.lineTo(0, internalTriangleSize);
+        path.close();
     }
 
     public void setDogearColor(int dogearColor) {
@@ -56,19 +75,12 @@ public class DogearView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        Paint paint = new Paint();
-        paint.setStyle(Paint.Style.FILL);
-        paint.setColor(Color.parseColor("#eeeeee")); // this simulates the back side of the notification
+        paint.setColor(BACK_SIDE_COLOR); // this simulates the back side of the notification
+        paint.setAntiAlias(false);
         //paint.setAlpha(0); // transparent background
         canvas.drawPaint(paint);
         paint.setColor(dogearColor);
         paint.setAntiAlias(true);
-        Path path = new Path();
-        path.moveTo(internalTriangleSize, internalTriangleSize);
-        path.lineTo(internalTriangleSize, 0);
-        path.lineTo(0, internalTriangleSize);
-        path.close();
-
         canvas.drawPath(path, paint);
     }
 
@@ -86,4 +98,37 @@ public class DogearView extends View {
         this.draw(c);
         return b;
     }
+
+    /**
+     * Returns the rendered dogear of the given color, which is rendered only once and then
+     * shared. The returned bitmap must not be modified or recycled.
+     */
+    public static Bitmap getBitmap(Context context, int dogearColor) {
+        synchronized (dogearCache) {
+            Bitmap dogear = dogearCache.get(dogearColor);
+            if (dogear == null) {
+                if (dogearCache.size() >= MAX_CACHED_DOGEARS)
+                    dogearCache.clear();
+                dogear = new DogearView(context, dogearColor).toBitmap();
+                dogearCache.put(dogearColor, dogear);
+            }
+            return dogear;
+        }
+    }
+
+    /**
+     * Drops all cached dogears, e.g., when the system is running low on memory. Bitmaps
+     * still referenced by notifications stay valid.
+     */
+    public static void clearCache() {
+        synchronized (dogearCache) {
+            dogearCache.clear();
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        synchronized (dogearCache) {
+            pw.println("dogear cache: " + dogearCache.size() + " color(s)");
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * An LRU cache of decoded (and already inverted) icons of notifications received from
+ * other containers, keyed by the source container and the content hash of the icon
+ * field as it has been sent (see PixelCodec.contentHash()).
+ *
+ * Each source container has a partition of its own with fixed bounds, so that a
+ * container is never able to make us show an icon that has been sent by another one,
+ * nor to evict the icons of another one. The NotificationDeltaEncoder of the sending
+ * container derives the icons it may reference from these bounds. Partitions are never
+ * dropped as a whole: source ids are assigned by cmld, so there is one partition per
+ * container at most. The cached bitmaps are
+ * shared by all notifications using them and must not be modified or recycled.
+ */
+public class IconCache {
+    public static final int MAX_ENTRIES_PER_SOURCE = 64;
+    public static final int MAX_BYTES_PER_SOURCE = 2*1024*1024;
+
+    private static class Partition {
+        final LinkedHashMap<String, Bitmap> icons = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+        int bytes = 0;
+    }
+
+    private final HashMap<String, Partition> partitions = new HashMap<String, Partition>();
+
+    // Statistics printed by dump().
+    private long hits = 0;
+    private long misses = 0;
+
+    private static String keyOf(byte[] hash) {
+        StringBuilder sb = new StringBuilder(2 * hash.length);
+        for (byte b : hash)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    public synchronized Bitmap get(String sourceContainer, byte[] hash) {
+        Partition partition = partitions.get(sourceContainer);
+        Bitmap icon = partition != null ? partition.icons.get(keyOf(hash)) : null;
+        if (icon != null)
+            hits++;
+        else
+            misses++;
+        return icon;
+    }
+
+    public synchronized void put(String sourceContainer, byte[] hash, Bitmap icon) {
+        Partition partition = partitions.get(sourceContainer);
+        if (partition == null) {
+            partition = new Partition();
+            partitions.put(sourceContainer, partition);
+        }
+
+        Bitmap old = partition.icons.put(keyOf(hash), icon);
+        if (old != null)
+            partition.bytes -= old.getAllocationByteCount();
+        partition.bytes += icon.getAllocationByteCount();
+
+        Iterator<Bitmap> it = partition.icons.values().iterator();
+        while ((partition.bytes > MAX_BYTES_PER_SOURCE || partition.icons.size() > MAX_ENTRIES_PER_SOURCE)
+                && it.hasNext()) {
+            partition.bytes -= it.next().getAllocationByteCount();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        partitions.clear();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("icon cache:");
+        for (Map.Entry<String, Partition> e : partitions.entrySet()) {
+            Partition partition = e.getValue();
+            pw.println("  " + e.getKey() + ": entries: " + partition.icons.size()
+                    + ", bytes: " + partition.bytes + " (max " + MAX_BYTES_PER_SOURCE + ")");
+        }
+        pw.println("  hits: " + hits + ", misses: " + misses);
+    }
+}
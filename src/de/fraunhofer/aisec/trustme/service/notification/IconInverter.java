@@ -0,0 +1,57 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+/**
+ * Inverts the colors of icons of received notifications, so that they are shown in the
+ * inverted colors of the status bar of the foreground container.
+ *
+ * Pixels are inverted in their raw ARGB_8888 memory layout, i.e. as produced by
+ * Bitmap.copyPixelsToBuffer() on the sending side and consumed by copyPixelsFromBuffer()
+ * here: bytes in R, G, B, A order with colors premultiplied by alpha. Inverting a
+ * premultiplied color channel c of a pixel with alpha a yields a - c, which equals the
+ * premultiplied value of the inverted unpremultiplied channel (up to rounding).
+ *
+ * Working on the byte array in a single pass avoids the two JNI calls per pixel of
+ * Bitmap.getPixel() and setPixel(). This class only depends on plain Java so that it
+ * can be benchmarked outside of Android.
+ */
+public final class IconInverter {
+    private IconInverter() {
+    }
+
+    /**
+     * Inverts length bytes of raw ARGB_8888 pixels starting at offset in place. length has
+     * to be a multiple of 4.
+     */
+    public static void invert(byte[] pixels, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i += 4) {
+            int a = pixels[i + 3] & 0xff;
+            pixels[i] = (byte) (a - (pixels[i] & 0xff));
+            pixels[i + 1] = (byte) (a - (pixels[i + 1] & 0xff));
+            pixels[i + 2] = (byte) (a - (pixels[i + 2] & 0xff));
+        }
+    }
+}
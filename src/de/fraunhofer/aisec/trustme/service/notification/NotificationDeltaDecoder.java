@@ -0,0 +1,167 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
+
+/**
+ * Restores delta updates created by the NotificationDeltaEncoder of another container
+ * into full notification messages, based on the last full state received for the same
+ * notification. The amount of cached state is bounded by MAX_CACHED_BYTES.
+ *
+ * The decoder also reports the first notification received from each source container
+ * to its SourceListener, since such a container (e.g., one started after us) has not
+ * seen the icons we have sent so far.
+ */
+public class NotificationDeltaDecoder {
+    private static final String TAG = "TrustmeService.NotificationDeltaDecoder";
+
+    private static final int MAX_CACHED_BYTES = 4*1024*1024;
+
+    public interface SourceListener {
+        /**
+         * Called on the receiving thread with a source container we have not received a
+         * notification from before.
+         */
+        void onNewSource(String sourceId);
+    }
+
+    private static class State {
+        long version;
+        String title;
+        String text;
+        byte[] icon;
+    }
+
+    private final LinkedHashMap<String, State> states = new LinkedHashMap<String, State>(16, 0.75f, true);
+    private int cachedBytes = 0;
+
+    // Source ids are assigned by cmld, so there is one per container at most.
+    private final HashSet<String> sources = new HashSet<String>();
+    private final SourceListener sourceListener;
+
+    // Statistics printed by dump().
+    private long deltaUpdates = 0;
+    private long missingBase = 0;
+
+    public NotificationDeltaDecoder(SourceListener sourceListener) {
+        this.sourceListener = sourceListener;
+    }
+
+    /**
+     * Applies a received notification to the cached state and, if it is a delta update,
+     * restores title, text and icon. Returns false if the notification cannot be restored
+     * and must be dropped.
+     */
+    public synchronized boolean apply(String sourceId, ContainerNotification cn) {
+        if (sources.add(sourceId)) {
+            Log.d(TAG, "First notification from container " + sourceId);
+            sourceListener.onNewSource(sourceId);
+        }
+
+        String key = sourceId + "." + cn.pkgName + "." + cn.tag + "." + cn.id;
+
+        if (!NotificationDeltaEncoder.isStandardPost(cn)) {
+            remove(key);
+            return true;
+        }
+
+        if (!isDelta(cn)) {
+            remove(key);
+            State state = new State();
+            state.version = cn.timestamp;
+            state.title = cn.title;
+            state.text = cn.text;
+            state.icon = cn.originalIcon;
+            states.put(key, state);
+            cachedBytes += state.icon.length;
+            trim();
+            return true;
+        }
+
+        long baseVersion = 0;
+        for (int i = 0; i < 8; i++)
+            baseVersion = (baseVersion << 8) | (cn.originalIcon[NotificationDeltaEncoder.MAGIC.length + i] & 0xff);
+        int flags = cn.originalIcon[NotificationDeltaEncoder.MARKER_SIZE - 1];
+
+        State state = states.get(key);
+        if (state == null || state.version != baseVersion) {
+            missingBase++;
+            Log.d(TAG, "Dropping delta update for " + key + " since we do not know its base version " + baseVersion);
+            return false;
+        }
+
+        if ((flags & NotificationDeltaEncoder.TITLE_UNCHANGED) != 0)
+            cn.title = state.title;
+        else
+            state.title = cn.title;
+        if ((flags & NotificationDeltaEncoder.TEXT_UNCHANGED) != 0)
+            cn.text = state.text;
+        else
+            state.text = cn.text;
+        cn.originalIcon = state.icon;
+        state.version = cn.timestamp;
+        deltaUpdates++;
+        return true;
+    }
+
+    private static boolean isDelta(ContainerNotification cn) {
+        if (cn.originalIcon.length != NotificationDeltaEncoder.MARKER_SIZE)
+            return false;
+        for (int i = 0; i < NotificationDeltaEncoder.MAGIC.length; i++) {
+            if (cn.originalIcon[i] != NotificationDeltaEncoder.MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void remove(String key) {
+        State state = states.remove(key);
+        if (state != null)
+            cachedBytes -= state.icon.length;
+    }
+
+    private void trim() {
+        Iterator<State> it = states.values().iterator();
+        while (cachedBytes > MAX_CACHED_BYTES && it.hasNext()) {
+            cachedBytes -= it.next().icon.length;
+            it.remove();
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("notification delta decoder:");
+        pw.println("  source containers: " + sources.size());
+        pw.println("  cached keys: " + states.size() + ", cached bytes: " + cachedBytes);
+        pw.println("  restored delta updates: " + deltaUpdates + ", dropped for missing base: " + missingBase);
+    }
+}
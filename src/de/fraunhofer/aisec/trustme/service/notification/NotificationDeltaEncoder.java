@@ -0,0 +1,278 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
+import de.fraunhofer.aisec.trustme.service.TrustmeProperties;
+
+/**
+ * Turns standard notification posts into delta updates if the same notification
+ * (package/tag/id) has been forwarded before with the same icon.
+ *
+ * A delta update carries the following marker instead of the icon pixels in
+ * originalIcon, while originalIconWidth and originalIconHeight stay set:
+ *
+ *   "TMD1" | base version (8 bytes, network byte order) | flags (1 byte)
+ *
+ * The base version is the timestamp of the last message forwarded for this key. The
+ * flags tell whether title and text are unchanged, in which case they are left empty.
+ * The NotificationDeltaDecoder in the receiving container restores the full message if
+ * it has seen the base version, and drops it otherwise. In order to recover receivers
+ * that missed a base (e.g., because their container has been started in the meantime),
+ * every MAX_DELTAS_PER_FULL-th update is sent in full.
+ *
+ * Independently of the notification key, an icon whose pixels have been sent recently
+ * is replaced by a reference to its content hash (see PixelCodec.reference()), which
+ * the receiver resolves with its IconCache. Since receivers cannot tell us about icons
+ * they have evicted, we only remember as many icons as fit into half of the partition
+ * the receiver's IconCache keeps per source container (it may hold icons we do not track,
+ * e.g., restored from delta updates) and send an icon in full again after it has been
+ * referenced MAX_REFERENCES_PER_FULL times or MAX_REFERENCE_AGE_MS after it has been sent
+ * in full. Receivers that do not know our icons yet make us forget them altogether (see
+ * forgetIcons()). A receiver that has lost an icon nevertheless (e.g., because it has been
+ * restarted) shows the notification without it until the icon is sent in full again.
+ *
+ * Delta updates are enabled with to.trustme.notification.delta and icon references with
+ * to.trustme.notification.iconref. The encoder must be applied to messages in the order
+ * they are written to cmld and reset whenever the connection to cmld is lost or a write
+ * fails. Each reset starts a new generation; encode(cn, generation) refuses messages of
+ * an older one, which were taken for a connection that is gone.
+ */
+public class NotificationDeltaEncoder {
+    static final byte[] MAGIC = { 'T', 'M', 'D', '1' };
+    static final int MARKER_SIZE = MAGIC.length + 8 + 1;
+    static final int TITLE_UNCHANGED = 1;
+    static final int TEXT_UNCHANGED = 2;
+
+    private static final int MAX_KEYS = 256;
+    private static final int MAX_DELTAS_PER_FULL = 8;
+    private static final int MAX_SENT_ICONS = IconCache.MAX_ENTRIES_PER_SOURCE / 2;
+    private static final int MAX_SENT_ICON_BYTES = IconCache.MAX_BYTES_PER_SOURCE / 2;
+    private static final int MAX_REFERENCES_PER_FULL = 32;
+    private static final long MAX_REFERENCE_AGE_MS = 60 * 1000;
+
+    private static class State {
+        long version;
+        String title;
+        String text;
+        byte[] iconHash;
+        int iconWidth;
+        int iconHeight;
+        int deltas;
+    }
+
+    private final LinkedHashMap<String, State> states = new LinkedHashMap<String, State>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    private static class SentIcon {
+        int references; // sent since the icon was last sent in full
+        long sentAt; // when the icon was last sent in full
+        int bytes; // the receiver caches
+    }
+
+    // Icons sent recently by content hash.
+    private final LinkedHashMap<ByteBuffer, SentIcon> sentIcons = new LinkedHashMap<ByteBuffer, SentIcon>(16, 0.75f, true);
+    private int sentIconBytes = 0;
+
+    private int generation = 0;
+
+    // Statistics printed by dump().
+    private long iconReferences = 0;
+    private long fullUpdates = 0;
+    private long deltaUpdates = 0;
+    private long savedBytes = 0;
+
+    static boolean isStandardPost(ContainerNotification cn) {
+        return cn.code == ContainerNotification.POST_NOTIFICATION
+                && !cn.isBase
+                && cn.customNotificationHeight == 0
+                && cn.originalIcon.length != 0;
+    }
+
+    /**
+     * Returns the current generation, i.e., the number of resets so far.
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Rewrites the given notification into a delta update if possible, unless the encoder
+     * has been reset since the given generation has been obtained.
+     *
+     * @return false if the generation is outdated; cn is left untouched then
+     */
+    public synchronized boolean encode(ContainerNotification cn, int generation) {
+        if (generation != this.generation)
+            return false;
+        encode(cn);
+        return true;
+    }
+
+    /**
+     * Rewrites the given notification into a delta update if possible.
+     */
+    private void encode(ContainerNotification cn) {
+        if (cn == null)
+            return;
+
+        String key = cn.pkgName + "." + cn.tag + "." + cn.id;
+        if (!isStandardPost(cn)) {
+            states.remove(key);
+            return;
+        }
+        boolean deltaEnabled = TrustmeProperties.isDeltaEnabled();
+        boolean referenceEnabled = TrustmeProperties.isIconReferenceEnabled();
+        if (!deltaEnabled && !referenceEnabled)
+            return;
+
+        byte[] iconHash = PixelCodec.contentHash(cn.originalIcon);
+        State state = states.get(key);
+        if (!deltaEnabled
+                || state == null
+                || state.deltas >= MAX_DELTAS_PER_FULL
+                || state.iconWidth != cn.originalIconWidth
+                || state.iconHeight != cn.originalIconHeight
+                || !Arrays.equals(state.iconHash, iconHash)) {
+            state = new State();
+            state.version = cn.timestamp;
+            state.title = cn.title;
+            state.text = cn.text;
+            state.iconHash = iconHash;
+            state.iconWidth = cn.originalIconWidth;
+            state.iconHeight = cn.originalIconHeight;
+            states.put(key, state);
+            fullUpdates++;
+            if (referenceEnabled)
+                referenceIcon(cn, iconHash);
+            return;
+        }
+
+        int flags = 0;
+        int saved = cn.originalIcon.length - MARKER_SIZE;
+        if (cn.title.equals(state.title)) {
+            flags |= TITLE_UNCHANGED;
+            saved += cn.title.length();
+            cn.title = "";
+        }
+        else {
+            state.title = cn.title;
+        }
+        if (cn.text.equals(state.text)) {
+            flags |= TEXT_UNCHANGED;
+            saved += cn.text.length();
+            cn.text = "";
+        }
+        else {
+            state.text = cn.text;
+        }
+
+        byte[] marker = new byte[MARKER_SIZE];
+        System.arraycopy(MAGIC, 0, marker, 0, MAGIC.length);
+        for (int i = 0; i < 8; i++)
+            marker[MAGIC.length + i] = (byte) (state.version >>> (56 - 8 * i));
+        marker[MARKER_SIZE - 1] = (byte) flags;
+        cn.originalIcon = marker;
+
+        state.version = cn.timestamp;
+        state.deltas++;
+        deltaUpdates++;
+        savedBytes += saved;
+    }
+
+    private void referenceIcon(ContainerNotification cn, byte[] iconHash) {
+        if (cn.originalIconWidth * cn.originalIconHeight * 4 == PixelCodec.REFERENCE_SIZE)
+            return; // a reference would be indistinguishable from raw pixels
+
+        ByteBuffer key = ByteBuffer.wrap(iconHash);
+        SentIcon icon = sentIcons.get(key);
+        long now = SystemClock.elapsedRealtime();
+        if (icon == null) {
+            icon = new SentIcon();
+            icon.sentAt = now;
+            icon.bytes = cn.originalIconWidth * cn.originalIconHeight * 4;
+            sentIcons.put(key, icon);
+            sentIconBytes += icon.bytes;
+            Iterator<SentIcon> it = sentIcons.values().iterator();
+            while ((sentIconBytes > MAX_SENT_ICON_BYTES || sentIcons.size() > MAX_SENT_ICONS) && it.hasNext()) {
+                sentIconBytes -= it.next().bytes;
+                it.remove();
+            }
+            return;
+        }
+        if (icon.references >= MAX_REFERENCES_PER_FULL || now - icon.sentAt >= MAX_REFERENCE_AGE_MS) {
+            icon.references = 0;
+            icon.sentAt = now;
+            return;
+        }
+        icon.references++;
+        savedBytes += cn.originalIcon.length - PixelCodec.REFERENCE_SIZE;
+        cn.originalIcon = PixelCodec.reference(iconHash);
+        iconReferences++;
+    }
+
+    /**
+     * Forgets everything that has been forwarded so far; the next update for each
+     * notification (and each icon) will be sent in full.
+     */
+    /**
+     * Forgets the icons sent so far, e.g., because a container that has not seen them has
+     * shown up; the next update of each icon will be sent in full.
+     */
+    public synchronized void forgetIcons() {
+        sentIcons.clear();
+        sentIconBytes = 0;
+    }
+
+    public synchronized void reset() {
+        generation++;
+        states.clear();
+        sentIcons.clear();
+        sentIconBytes = 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("notification delta encoder:");
+        pw.println("  delta updates enabled: " + TrustmeProperties.isDeltaEnabled()
+                + ", icon references enabled: " + TrustmeProperties.isIconReferenceEnabled());
+        pw.println("  tracked keys: " + states.size() + ", tracked icons: " + sentIcons.size()
+                + " (" + sentIconBytes + " bytes)");
+        pw.println("  full updates: " + fullUpdates + " (icon references: " + iconReferences + ")"
+                + ", delta updates: " + deltaUpdates
+                + ", saved " + savedBytes + " bytes");
+    }
+}
@@ -31,11 +31,19 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.Debug;
 import android.os.Parcel;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.NotificationListenerService.RankingMap;
 import android.service.notification.StatusBarNotification;
 
+import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
+import de.fraunhofer.aisec.trustme.service.CService.ServiceToCmldMessage;
+import de.fraunhofer.aisec.trustme.service.ICmldSender;
+import de.fraunhofer.aisec.trustme.service.TrustmeProperties;
+import de.fraunhofer.aisec.trustme.service.TrustmeService;
+
 
 public class NotificationListener extends NotificationListenerService {
     private static final String TAG = "TrustmeService";
@@ -46,30 +54,108 @@ public class NotificationListener extends NotificationListenerService {
     public static final String K9_PKG_NAME = "com.fsck.k9";
     public static final String THREEMA_PKG_NAME = "ch.threema.app";
 
+    // Ranking of the active notifications, updated with every RankingMap we get.
+    private final NotificationRankIndex rankIndex = new NotificationRankIndex();
+
+    // Drops the cached icons of replaced and removed packages.
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null)
+                return;
+            String pkgName = intent.getData().getSchemeSpecificPart();
+            Log.d(TAG, "Invalidating icons of package " + pkgName);
+            TrustmeNotificationManager.invalidateIcons(pkgName);
+        }
+    };
+
+    // Forwards the newest suppressed update of a progress notification once it may be.
+    private final ProgressForwarder.Callback progressCallback = new ProgressForwarder.Callback() {
+        @Override
+        public void onTrailingUpdate(StatusBarNotification sbn) {
+            forwardNotification(sbn, false);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "NotificationListener started");
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        registerReceiver(packageReceiver, filter);
+        TrustmeNotificationManager.setProgressCallback(progressCallback);
+    }
+
+    @Override
+    public void onDestroy() {
+        TrustmeNotificationManager.setProgressCallback(null);
+        unregisterReceiver(packageReceiver);
+        super.onDestroy();
+    }
+
+    @Override
+    public void onListenerConnected() {
+        super.onListenerConnected();
+        rankIndex.reset(getActiveNotifications(), getCurrentRanking());
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        TrustmeNotificationManager.onConfigurationChanged();
     }
 
     private void broadcastNotificationPosted(StatusBarNotification sbn,
             NotificationListenerService.RankingMap rankingMap) {
 
-        if (!sbn.getPackageName().equals(TRUSTME_SERVICE_PACKAGE_NAME)) { // ignore own trustme notifications
-            TrustmeNotificationManager tnm = new TrustmeNotificationManager(this); // pass context
-            Intent trustmeServiceIntent = tnm.createIntentFromStatusBarNotification(sbn);
-            if (trustmeServiceIntent != null)
-                sendBroadcast(trustmeServiceIntent); // TrustmeActionReceiver will handle this intent
-        }
+        if (!sbn.getPackageName().equals(TRUSTME_SERVICE_PACKAGE_NAME)) // ignore own trustme notifications
+            forwardNotification(sbn, false);
     }
 
     private void broadcastNotificationRemoved(StatusBarNotification sbn,
             NotificationListenerService.RankingMap rankingMap) {
 
-        if (!sbn.getPackageName().equals(TRUSTME_SERVICE_PACKAGE_NAME)) { // ignore own trustme notifications
-            TrustmeNotificationManager tnm = new TrustmeNotificationManager(this); // pass context
-            Intent trustmeServiceIntent = tnm.createIntentFromStatusBarNotification(sbn, true);
+        if (!sbn.getPackageName().equals(TRUSTME_SERVICE_PACKAGE_NAME)) // ignore own trustme notifications
+            forwardNotification(sbn, true);
+    }
+
+    private void forwardNotification(StatusBarNotification sbn, boolean cancel) {
+        long start = System.nanoTime();
+        long cpuStart = Debug.threadCpuTimeNanos();
+        TrustmeNotificationManager tnm = TrustmeNotificationManager.getInstance(this);
+
+        // The TrustmeService runs in our process and registers the TrustmeActionReceiver; without
+        // it, there is nobody to forward the notification to.
+        ICmldSender sender = TrustmeService.getLocalSender();
+        if (sender == null) {
+            Log.d(TAG, "TrustmeService not running, dropping notification of " + sbn.getPackageName());
+            return;
+        }
+
+        if (!TrustmeProperties.isBroadcastForced()) { // hand the message over to the TrustmeService directly
+            ContainerNotification cn = tnm.createMessageFromStatusBarNotification(sbn, cancel);
+            if (cn != null) {
+                ServiceToCmldMessage message = new ServiceToCmldMessage();
+                message.code = ServiceToCmldMessage.NOTIFICATION;
+                message.notification = cn;
+                sender.sendMessage(message);
+                TrustmeNotificationManager.recordForward(true, System.nanoTime() - start,
+                        Debug.threadCpuTimeNanos() - cpuStart);
+            }
+            return;
+        }
+
+        Intent trustmeServiceIntent = tnm.createIntentFromStatusBarNotification(sbn, cancel);
+        if (trustmeServiceIntent != null) {
+            // The intent may carry shared memory handles (see SharedPixelStore); keep it in our package.
+            trustmeServiceIntent.setPackage(getPackageName());
             sendBroadcast(trustmeServiceIntent); // TrustmeActionReceiver will handle this intent
+            TrustmeNotificationManager.recordBroadcastSent(System.nanoTime() - start,
+                    Debug.threadCpuTimeNanos() - cpuStart);
         }
     }
 
@@ -92,6 +178,7 @@ public class NotificationListener extends NotificationListenerService {
     public void onNotificationPosted(StatusBarNotification sbn,
             NotificationListenerService.RankingMap rankingMap) {
         String pkgName = sbn.getPackageName();
+        rankIndex.posted(sbn, rankingMap);
 
         Log.d(TAG,"Notification posted with given rank by " + pkgName);
 
@@ -127,8 +214,7 @@ public class NotificationListener extends NotificationListenerService {
             // necessary to handle invisble stacked notification management
             Log.d(TAG, "Stacked notification has been recognized as " + pkgName + " originated");
 
-            StackedNotificationManager snManager = new StackedNotificationManager(
-                this.getActiveNotifications(), rankingMap, pkgName);
+            StackedNotificationManager snManager = new StackedNotificationManager(rankIndex, pkgName);
 
             if (snManager.shouldBroadcastNotification(sbn)) {
                 this.broadcastNotificationPosted(sbn, rankingMap);
@@ -146,6 +232,7 @@ public class NotificationListener extends NotificationListenerService {
     @Override
     public void onNotificationRankingUpdate(NotificationListenerService.RankingMap rankingMap) {
         Log.d(TAG, "Notification ranks have been updated");
+        rankIndex.update(rankingMap);
     }
 
     @Override
@@ -159,6 +246,7 @@ public class NotificationListener extends NotificationListenerService {
     public void onNotificationRemoved(StatusBarNotification sbn,
             NotificationListenerService.RankingMap rankingMap) {
         String pkgName = sbn.getPackageName();
+        rankIndex.removed(sbn, rankingMap);
 
         Log.d(TAG, "Notification removed with given rank by " + pkgName);
 
@@ -0,0 +1,130 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.service.notification.NotificationListenerService;
+import android.service.notification.StatusBarNotification;
+
+/**
+ * Index of the active notifications per package, used to look up the rank of a
+ * notification and the best-ranked notification of a package.
+ *
+ * The NotificationListener reports every posted and removed notification together with
+ * the RankingMap it came with, and hands over the RankingMap of ranking updates. The
+ * keys of the active notifications are maintained per package from these deltas, so the
+ * index is never rebuilt; ranks are looked up in the latest RankingMap on demand. Hence
+ * bestKeyOf() costs one rank lookup per active notification of the package (usually a
+ * handful for mail apps), independently of the number of notifications overall. Note
+ * that the framework's RankingMap builds its own key to rank map on the first lookup, so
+ * each RankingMap queried costs one pass over its keys inside the framework.
+ */
+public class NotificationRankIndex {
+    private NotificationListenerService.RankingMap rankingMap = null;
+    private final NotificationListenerService.Ranking ranking = new NotificationListenerService.Ranking();
+
+    // Keys of the active notifications per package.
+    private final HashMap<String, HashSet<String>> activeKeys = new HashMap<String, HashSet<String>>();
+
+    /**
+     * Replaces the indexed notifications by the given ones, e.g., when the listener has
+     * been (re)connected.
+     */
+    public synchronized void reset(StatusBarNotification[] active,
+            NotificationListenerService.RankingMap rankingMap) {
+        activeKeys.clear();
+        if (active != null) {
+            for (StatusBarNotification sbn : active)
+                add(sbn);
+        }
+        update(rankingMap);
+    }
+
+    public synchronized void posted(StatusBarNotification sbn,
+            NotificationListenerService.RankingMap rankingMap) {
+        add(sbn);
+        update(rankingMap);
+    }
+
+    public synchronized void removed(StatusBarNotification sbn,
+            NotificationListenerService.RankingMap rankingMap) {
+        HashSet<String> keys = activeKeys.get(sbn.getPackageName());
+        if (keys != null && keys.remove(sbn.getKey()) && keys.isEmpty())
+            activeKeys.remove(sbn.getPackageName());
+        update(rankingMap);
+    }
+
+    public synchronized void update(NotificationListenerService.RankingMap rankingMap) {
+        if (rankingMap != null)
+            this.rankingMap = rankingMap;
+    }
+
+    private void add(StatusBarNotification sbn) {
+        HashSet<String> keys = activeKeys.get(sbn.getPackageName());
+        if (keys == null) {
+            keys = new HashSet<String>();
+            activeKeys.put(sbn.getPackageName(), keys);
+        }
+        keys.add(sbn.getKey());
+    }
+
+    /**
+     * Returns whether a ranking has been received yet.
+     */
+    public synchronized boolean hasRanking() {
+        return rankingMap != null;
+    }
+
+    /**
+     * Returns the rank of the notification with the given key, or -1 if it is not active.
+     */
+    public synchronized int rankOf(String key) {
+        if (rankingMap == null || !rankingMap.getRanking(key, ranking))
+            return -1;
+        return ranking.getRank();
+    }
+
+    /**
+     * Returns the key of the best-ranked active notification of pkgName, or null if the
+     * package has no active notifications.
+     */
+    public synchronized String bestKeyOf(String pkgName) {
+        HashSet<String> keys = activeKeys.get(pkgName);
+        if (keys == null)
+            return null;
+
+        String bestKey = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (String key : keys) {
+            int rank = rankOf(key);
+            if (rank >= 0 && rank < bestRank) {
+                bestRank = rank;
+                bestKey = key;
+            }
+        }
+        return bestKey;
+    }
+}
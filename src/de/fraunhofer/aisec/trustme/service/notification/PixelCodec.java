@@ -0,0 +1,197 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import de.fraunhofer.aisec.trustme.service.TrustmeProperties;
+
+/**
+ * Encodes the raw ARGB_8888 pixel fields of a ContainerNotification (originalIcon and
+ * customNotification) for the transfer via cmld.
+ *
+ * If compression is enabled (to.trustme.notification.compress), pixels are deflated at
+ * the fastest level and prefixed with a small header (see PixelDeflater):
+ *
+ *   "TMZ1" | uncompressed length (4 bytes, network byte order) | deflate data
+ *
+ * Compressed data is only sent if it is smaller than the raw pixels, so a field that is
+ * shorter than width * height * 4 and starts with the header is compressed, and anything
+ * else is raw pixels as before. decode() understands both formats regardless of the
+ * property, which allows enabling compression on the sending side once all containers
+ * run a TrustmeService with this class.
+ *
+ * An icon the receiver has seen before may also be replaced by a reference to its
+ * content hash (see contentHash()):
+ *
+ *   "TMH1" | content hash (16 bytes)
+ *
+ * The receiver resolves such references with its IconCache.
+ */
+public final class PixelCodec {
+    private static final String TAG = "TrustmeService.PixelCodec";
+
+    private static final int CONTENT_HASH_SIZE = 16;
+    private static final byte[] MAGIC_REFERENCE = { 'T', 'M', 'H', '1' };
+    public static final int REFERENCE_SIZE = MAGIC_REFERENCE.length + CONTENT_HASH_SIZE;
+
+    private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    // Statistics printed by dump(); guarded by the class lock.
+    private static long encodedFields = 0;
+    private static long rawBytes = 0;
+    private static long encodedBytes = 0;
+    private static long encodeTimeUs = 0;
+    private static long decodedFields = 0;
+    private static long decodeTimeUs = 0;
+
+    private PixelCodec() {
+    }
+
+    public static boolean isCompressionEnabled() {
+        return TrustmeProperties.isCompressionEnabled();
+    }
+
+    /**
+     * Returns the representation of the given raw pixels to be put into the protobuf
+     * message, that is, the pixels themselves if compression is disabled or does not pay
+     * off, or the compressed pixels otherwise.
+     */
+    public static byte[] encode(byte[] pixels) {
+        if (pixels == null || pixels.length == 0 || !isCompressionEnabled())
+            return pixels;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        byte[] result = PixelDeflater.compress(pixels);
+        if (result == null)
+            result = pixels;
+        record(pixels.length, result.length, SystemClock.elapsedRealtimeNanos() - start);
+        return result;
+    }
+
+    /**
+     * Returns whether decoding the given field needs a buffer (see decode()).
+     */
+    public static boolean isCompressed(byte[] data, int rawSize) {
+        return PixelDeflater.isCompressed(data, rawSize);
+    }
+
+    /**
+     * Returns the raw pixels of an encoded field, ready for Bitmap.copyPixelsFromBuffer().
+     * rawSize is the number of bytes the receiver needs (width * height * 4). Compressed
+     * pixels are inflated into buffer, which must hold at least rawSize bytes; raw pixels
+     * are returned in place, i.e., backed by data. Returns null if the field is malformed.
+     */
+    public static ByteBuffer decode(byte[] data, int rawSize, byte[] buffer) {
+        if (!PixelDeflater.isCompressed(data, rawSize))
+            return data != null && data.length >= rawSize ? ByteBuffer.wrap(data, 0, rawSize) : null;
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            PixelDeflater.decompress(data, rawSize, buffer);
+        }
+        catch (DataFormatException e) {
+            Log.w(TAG, "Malformed compressed pixels: " + e.getMessage());
+            return null;
+        }
+
+        synchronized (PixelCodec.class) {
+            decodedFields++;
+            decodeTimeUs += (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        }
+        return ByteBuffer.wrap(buffer, 0, rawSize);
+    }
+
+    /**
+     * Returns a hash identifying the content of an (encoded) pixel field, i.e. the first
+     * CONTENT_HASH_SIZE bytes of its SHA-256 digest. We use a cryptographic hash since the
+     * pixels are supplied by apps in other containers.
+     */
+    public static byte[] contentHash(byte[] data) {
+        byte[] digest = sha256.get().digest(data);
+        byte[] hash = new byte[CONTENT_HASH_SIZE];
+        System.arraycopy(digest, 0, hash, 0, CONTENT_HASH_SIZE);
+        return hash;
+    }
+
+    /**
+     * Returns a field referencing the content with the given hash.
+     */
+    public static byte[] reference(byte[] hash) {
+        byte[] field = new byte[REFERENCE_SIZE];
+        System.arraycopy(MAGIC_REFERENCE, 0, field, 0, MAGIC_REFERENCE.length);
+        System.arraycopy(hash, 0, field, MAGIC_REFERENCE.length, CONTENT_HASH_SIZE);
+        return field;
+    }
+
+    /**
+     * Returns the content hash if the field is a reference, or null if it carries pixels.
+     * rawSize is the number of bytes of the raw pixels (width * height * 4).
+     */
+    public static byte[] referencedHash(byte[] data, int rawSize) {
+        if (data == null || data.length != REFERENCE_SIZE || rawSize == REFERENCE_SIZE)
+            return null;
+        for (int i = 0; i < MAGIC_REFERENCE.length; i++) {
+            if (data[i] != MAGIC_REFERENCE[i])
+                return null;
+        }
+        byte[] hash = new byte[CONTENT_HASH_SIZE];
+        System.arraycopy(data, MAGIC_REFERENCE.length, hash, 0, CONTENT_HASH_SIZE);
+        return hash;
+    }
+
+    private static synchronized void record(int raw, int encoded, long timeNs) {
+        encodedFields++;
+        rawBytes += raw;
+        encodedBytes += encoded;
+        encodeTimeUs += timeNs / 1000;
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        pw.println("pixel codec:");
+        pw.println("  compression enabled: " + isCompressionEnabled());
+        pw.println("  encoded fields: " + encodedFields
+                + ", raw " + rawBytes + " bytes -> on the wire " + encodedBytes + " bytes"
+                + ", avg encode time " + (encodedFields > 0 ? encodeTimeUs / encodedFields : 0) + " us");
+        pw.println("  decoded fields: " + decodedFields
+                + ", avg decode time " + (decodedFields > 0 ? decodeTimeUs / decodedFields : 0) + " us");
+    }
+}
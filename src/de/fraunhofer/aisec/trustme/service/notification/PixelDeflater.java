@@ -0,0 +1,141 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressed pixel format of PixelCodec:
+ *
+ *   "TMZ1" | uncompressed length (4 bytes, network byte order) | deflate data
+ *
+ * This class does not depend on the Android framework, so the codec can also be
+ * benchmarked on the host JVM (see benchmark/).
+ */
+public final class PixelDeflater {
+    private static final byte[] MAGIC_DEFLATE = { 'T', 'M', 'Z', '1' };
+    public static final int HEADER_SIZE = MAGIC_DEFLATE.length + 4;
+
+    private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private PixelDeflater() {
+    }
+
+    /**
+     * Returns the compressed representation of pixels, or null if it would not be smaller
+     * than the pixels themselves.
+     */
+    public static byte[] compress(byte[] pixels) {
+        Deflater d = deflater.get();
+        d.reset();
+        d.setInput(pixels);
+        d.finish();
+
+        // Compressed data larger than the raw pixels is useless; stop right there.
+        byte[] out = new byte[pixels.length];
+        writeHeader(out, pixels.length);
+        int length = HEADER_SIZE;
+        while (!d.finished() && length < out.length)
+            length += d.deflate(out, length, out.length - length);
+        if (!d.finished() || length >= pixels.length)
+            return null;
+
+        byte[] result = new byte[length];
+        System.arraycopy(out, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Returns whether data is in the compressed format, given that the raw pixels have
+     * rawSize bytes (width * height * 4).
+     */
+    public static boolean isCompressed(byte[] data, int rawSize) {
+        if (data == null || data.length < HEADER_SIZE || data.length >= rawSize)
+            return false;
+        for (int i = 0; i < MAGIC_DEFLATE.length; i++) {
+            if (data[i] != MAGIC_DEFLATE[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first rawSize bytes of the pixels compressed in data (see isCompressed()).
+     *
+     * @throws DataFormatException if data is malformed or holds less than rawSize bytes
+     */
+    public static byte[] decompress(byte[] data, int rawSize) throws DataFormatException {
+        byte[] pixels = new byte[rawSize];
+        decompress(data, rawSize, pixels);
+        return pixels;
+    }
+
+    /**
+     * Inflates the first rawSize bytes of the pixels compressed in data into the start of
+     * pixels, which must hold at least rawSize bytes.
+     *
+     * @throws DataFormatException if data is malformed or holds less than rawSize bytes
+     */
+    public static void decompress(byte[] data, int rawSize, byte[] pixels) throws DataFormatException {
+        int length = ((data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16)
+                | ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+        if (length < rawSize)
+            throw new DataFormatException("compressed pixels too short: " + length + " < " + rawSize);
+
+        // We only inflate what the receiver needs, whatever the header claims.
+        Inflater i = inflater.get();
+        i.reset();
+        i.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        int n = 0;
+        while (n < rawSize && !i.finished()) {
+            int inflated = i.inflate(pixels, n, rawSize - n);
+            if (inflated == 0 && (i.needsInput() || i.needsDictionary()))
+                break;
+            n += inflated;
+        }
+        if (n != rawSize)
+            throw new DataFormatException("compressed pixels truncated: " + n + " of " + rawSize + " bytes");
+    }
+
+    private static void writeHeader(byte[] out, int length) {
+        System.arraycopy(MAGIC_DEFLATE, 0, out, 0, MAGIC_DEFLATE.length);
+        out[4] = (byte) (length >>> 24);
+        out[5] = (byte) (length >>> 16);
+        out[6] = (byte) (length >>> 8);
+        out[7] = (byte) length;
+    }
+}
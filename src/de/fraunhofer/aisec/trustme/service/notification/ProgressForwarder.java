@@ -0,0 +1,224 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.app.Notification;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+
+import de.fraunhofer.aisec.trustme.service.TrustmeProperties;
+
+/**
+ * Decides which updates of progress notifications are forwarded to cmld.
+ *
+ * The first update of a progress notification, its completion and its final state (i.e.,
+ * the progress bar removed) are always forwarded. Updates in between are forwarded only
+ * if at least to.trustme.notification.progress_interval_ms have passed or the progress
+ * advanced by at least to.trustme.notification.progress_step percentage points since the
+ * last forwarded one (see TrustmeProperties), so that
+ * the mirrored notification shows live progress without flooding cmld. Updates changing
+ * the title or text are always forwarded. The newest suppressed update is kept and handed
+ * to the Callback once the interval has passed, so the final progress is not lost if no
+ * further update comes.
+ *
+ * The state of at most MAX_ENTRIES progress notifications is kept; if there are more,
+ * the one forwarded least recently is forgotten (and its next update forwarded).
+ */
+public class ProgressForwarder {
+    private static final int MAX_ENTRIES = 256;
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the newest suppressed update of a progress
+         * notification once it may be forwarded.
+         */
+        void onTrailingUpdate(StatusBarNotification sbn);
+    }
+
+    // The last forwarded update of a progress notification and the newest suppressed one.
+    private class State implements Runnable {
+        final String key;
+        long forwardedAt;
+        int percent;
+        String title;
+        String text;
+        StatusBarNotification pending; // scheduled iff not null
+
+        State(String key) {
+            this.key = key;
+        }
+
+        // Called when the interval of a suppressed update has passed.
+        @Override
+        public void run() {
+            StatusBarNotification sbn;
+            synchronized (this) {
+                sbn = pending;
+                pending = null;
+            }
+            Callback cb = callback;
+            if (sbn == null || cb == null || states.get(key) != this)
+                return;
+            trailing.incrementAndGet();
+            cb.onTrailingUpdate(sbn); // runs through shouldForward() again
+        }
+    }
+
+    private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<String, State>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile Callback callback;
+
+    // Statistics printed by dump().
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong trailing = new AtomicLong();
+
+    /**
+     * Sets the callback the newest suppressed updates are handed to, or null to drop them.
+     */
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    private static String keyOf(StatusBarNotification sbn) {
+        return sbn.getPackageName() + "." + sbn.getTag() + "." + sbn.getId();
+    }
+
+    private static String getString(Bundle extras, String key) {
+        CharSequence cs = extras.getCharSequence(key);
+        return cs != null ? cs.toString() : null;
+    }
+
+    /**
+     * Returns whether the given update of a notification is to be forwarded. This is the
+     * case for all notifications which do not show progress.
+     */
+    public boolean shouldForward(StatusBarNotification sbn) {
+        String key = keyOf(sbn);
+        Notification n = sbn.getNotification();
+        int max = n.extras.getInt(Notification.EXTRA_PROGRESS_MAX);
+        int progress = n.extras.getInt(Notification.EXTRA_PROGRESS);
+        boolean indeterminate = n.extras.getBoolean(Notification.EXTRA_PROGRESS_INDETERMINATE);
+
+        if (max == 0 && !indeterminate) {
+            // Either no progress notification at all or its final state (setProgress(0, 0, false)).
+            State state = states.remove(key);
+            if (state != null) {
+                handler.removeCallbacks(state);
+                forwarded.incrementAndGet();
+            }
+            return true;
+        }
+
+        int percent = indeterminate ? -1 : (int) ((long) Math.min(progress, max) * 100 / max);
+        String title = getString(n.extras, Notification.EXTRA_TITLE);
+        String text = getString(n.extras, Notification.EXTRA_TEXT);
+        long now = SystemClock.elapsedRealtime();
+
+        State state = states.get(key);
+        if (state == null) {
+            State first = new State(key);
+            first.forwardedAt = now;
+            first.percent = percent;
+            first.title = title;
+            first.text = text;
+            if (states.size() >= MAX_ENTRIES)
+                evictOldest();
+            state = states.putIfAbsent(key, first);
+            if (state == null) { // first update of this progress notification
+                forwarded.incrementAndGet();
+                return true;
+            }
+        }
+
+        synchronized (state) {
+            boolean completed = percent == 100 && state.percent != 100;
+            boolean advanced = percent >= 0 && Math.abs(percent - state.percent) >= TrustmeProperties.getProgressStep();
+            boolean changed = !Objects.equals(title, state.title) || !Objects.equals(text, state.text);
+            long wait = state.forwardedAt + TrustmeProperties.getProgressIntervalMs() - now;
+            if (!completed && !advanced && !changed && wait > 0) {
+                if (state.pending == null)
+                    handler.postDelayed(state, wait);
+                state.pending = sbn;
+                suppressed.incrementAndGet();
+                return false;
+            }
+            state.forwardedAt = now;
+            state.percent = percent;
+            state.title = title;
+            state.text = text;
+            if (state.pending != null) {
+                state.pending = null;
+                handler.removeCallbacks(state);
+            }
+        }
+        forwarded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Forgets the state of a notification that has been canceled.
+     */
+    public void remove(StatusBarNotification sbn) {
+        State state = states.remove(keyOf(sbn));
+        if (state != null)
+            handler.removeCallbacks(state);
+    }
+
+    private void evictOldest() {
+        String oldestKey = null;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<String, State> e : states.entrySet()) {
+            State state = e.getValue();
+            synchronized (state) {
+                if (state.forwardedAt < oldest) {
+                    oldest = state.forwardedAt;
+                    oldestKey = e.getKey();
+                }
+            }
+        }
+        if (oldestKey != null) {
+            State state = states.remove(oldestKey);
+            if (state != null)
+                handler.removeCallbacks(state);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("progress notifications:");
+        pw.println("  tracked: " + states.size() + " (max " + MAX_ENTRIES + "), interval: "
+                + TrustmeProperties.getProgressIntervalMs() + " ms, step: " + TrustmeProperties.getProgressStep() + "%");
+        pw.println("  forwarded: " + forwarded.get() + ", suppressed: " + suppressed.get()
+                + ", trailing: " + trailing.get());
+    }
+}
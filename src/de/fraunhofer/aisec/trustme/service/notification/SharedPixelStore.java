@@ -0,0 +1,272 @@
+/*
+ * This file is part of trust|me
+ * Copyright(c) 2013 - 2017 Fraunhofer AISEC
+ * Fraunhofer-Gesellschaft zur Förderung der angewandten Forschung e.V.
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms and conditions of the GNU General Public License,
+ * version 2 (GPL 2), as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL 2 license for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ * The full GNU General Public License is included in this distribution in
+ * the file called "COPYING".
+ *
+ * Contact Information:
+ * Fraunhofer AISEC <trustme@aisec.fraunhofer.de>
+ */
+
+package de.fraunhofer.aisec.trustme.service.notification;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.MemoryFile;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Hands large pixel payloads of notification intents over via ashmem instead of byte[]
+ * extras, which have to fit into the binder transaction buffer together with the rest of
+ * the intent.
+ *
+ * The pixels are written into a MemoryFile and the intent only carries a binder handle of
+ * that region and its length (file descriptors must not be put into broadcast intents).
+ * The handle only serves callers of the same uid, and intents carrying one must only be
+ * sent to our own package.
+ * The receiver gets the file descriptor of the region via the handle, reads the pixels
+ * straight into the protobuf field and releases the region. Regions are reference-counted
+ * and freed once released, or after REGION_TIMEOUT_MS if nobody received the intent.
+ */
+public class SharedPixelStore {
+    private static final String TAG = "TrustmeService";
+
+    // Smaller payloads are put into the intent as byte[] extra.
+    public static final int MIN_SHARED_SIZE = 32*1024;
+    private static final long REGION_TIMEOUT_MS = 10 * 1000;
+
+    private static final String SHARED_SUFFIX = ".shared";
+    private static final String HANDLE_KEY = "handle";
+    private static final String LENGTH_KEY = "length";
+
+    private static final int TRANSACTION_FETCH = IBinder.FIRST_CALL_TRANSACTION;
+    private static final int TRANSACTION_RELEASE = IBinder.FIRST_CALL_TRANSACTION + 1;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<Region> regions = new HashSet<Region>();
+    private int bytes = 0;
+
+    // Statistics printed by dump().
+    private long shared = 0;
+    private long released = 0;
+    private long expired = 0;
+    private long failed = 0;
+
+    private class Region extends Binder implements Runnable {
+        private final MemoryFile file;
+        private final int length;
+        private int refs = 1; // held by the intent until the receiver releases it
+
+        Region(MemoryFile file, int length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        synchronized boolean acquire() {
+            if (refs == 0)
+                return false;
+            refs++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (refs == 0 || --refs > 0)
+                return;
+            file.close();
+            removeRegion(this);
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            // The handle travels in a broadcast intent; only our own process may use it.
+            if (Binder.getCallingUid() != Process.myUid()) {
+                Log.w(TAG, "Rejecting shared memory transaction from uid " + Binder.getCallingUid());
+                return false;
+            }
+            if (code == TRANSACTION_FETCH) {
+                if (!acquire()) {
+                    reply.writeInt(0); // already freed
+                    return true;
+                }
+                try {
+                    reply.writeInt(1);
+                    reply.writeFileDescriptor(file.getFileDescriptor()); // dup'ed by the parcel
+                } catch (IOException e) {
+                    throw new RemoteException();
+                } finally {
+                    release();
+                }
+                return true;
+            }
+            else if (code == TRANSACTION_RELEASE) {
+                synchronized (SharedPixelStore.this) {
+                    released++;
+                }
+                handler.removeCallbacks(this);
+                release();
+                return true;
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
+
+        // Called after REGION_TIMEOUT_MS.
+        @Override
+        public void run() {
+            synchronized (SharedPixelStore.this) {
+                expired++;
+            }
+            release();
+        }
+    }
+
+    /**
+     * Puts pixels into intent under key, via a shared memory region if they are large.
+     * Falls back to a byte[] extra if the region cannot be created.
+     */
+    public void putPixels(Intent intent, String key, byte[] pixels) {
+        if (pixels == null)
+            return;
+        if (pixels.length < MIN_SHARED_SIZE || !putShared(intent, key, pixels))
+            intent.putExtra(key, pixels);
+    }
+
+    /**
+     * Puts pixels into intent under key via a shared memory region whatever their size is.
+     *
+     * @return false if the region could not be created
+     */
+    public boolean putShared(Intent intent, String key, byte[] pixels) {
+        Bundle handle = share(pixels);
+        if (handle == null)
+            return false;
+        intent.putExtra(key + SHARED_SUFFIX, handle);
+        return true;
+    }
+
+    private Bundle share(byte[] pixels) {
+        Region region;
+        try {
+            MemoryFile file = new MemoryFile("trustme-pixels", pixels.length);
+            file.writeBytes(pixels, 0, 0, pixels.length);
+            region = new Region(file, pixels.length);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to create shared memory region: " + e.getMessage());
+            synchronized (this) {
+                failed++;
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            regions.add(region);
+            bytes += region.length;
+            shared++;
+        }
+        handler.postDelayed(region, REGION_TIMEOUT_MS);
+
+        Bundle handle = new Bundle();
+        handle.putBinder(HANDLE_KEY, region);
+        handle.putInt(LENGTH_KEY, region.length);
+        return handle;
+    }
+
+    private synchronized void removeRegion(Region region) {
+        if (regions.remove(region))
+            bytes -= region.length;
+    }
+
+    /**
+     * Returns the pixels put into intent under key by putPixels() (possibly by another
+     * process), or null if there are none. A shared memory region is released afterwards.
+     */
+    public static byte[] getPixels(Intent intent, String key) {
+        Bundle handle = intent.getBundleExtra(key + SHARED_SUFFIX);
+        if (handle == null)
+            return intent.getByteArrayExtra(key);
+
+        IBinder binder = handle.getBinder(HANDLE_KEY);
+        int length = handle.getInt(LENGTH_KEY, -1);
+        if (binder == null || length < 0) {
+            Log.e(TAG, "Malformed trustme intent: invalid shared memory handle for " + key);
+            return null;
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            binder.transact(TRANSACTION_FETCH, data, reply, 0);
+            if (reply.readInt() == 0) {
+                Log.w(TAG, "Shared memory region for " + key + " has already been freed");
+                return null;
+            }
+            ParcelFileDescriptor pfd = reply.readFileDescriptor();
+            try {
+                return readRegion(pfd, length);
+            } finally {
+                pfd.close();
+            }
+        } catch (RemoteException | IOException e) {
+            Log.e(TAG, "Failed to read shared memory region for " + key + ": " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                binder.transact(TRANSACTION_RELEASE, data, null, IBinder.FLAG_ONEWAY);
+            } catch (RemoteException e) {
+                // The sender is gone and so is its region.
+            }
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    private static byte[] readRegion(ParcelFileDescriptor pfd, int length) throws IOException {
+        // ashmem reports a file size of 0, which FileChannel.map() refuses to map; read the
+        // region at absolute positions instead, so that the file offset shared with the
+        // sender's descriptor does not matter.
+        byte[] pixels = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(pixels);
+        FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+        FileChannel channel = in.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) <= 0)
+                throw new IOException("short read of " + buffer.position() + " of " + length + " bytes");
+        }
+        return pixels;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("shared pixel regions:");
+        pw.println("  in use: " + regions.size() + ", bytes: " + bytes);
+        pw.println("  shared: " + shared + ", released: " + released + ", expired: " + expired
+                + ", failed: " + failed);
+    }
+}
@@ -23,13 +23,7 @@
 
 package de.fraunhofer.aisec.trustme.service.notification;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.LinkedList;
-
 import android.util.Log;
-import android.service.notification.NotificationListenerService;
-import android.service.notification.NotificationListenerService.RankingMap;
 import android.service.notification.StatusBarNotification;
 
 
@@ -37,8 +31,7 @@ public class StackedNotificationManager {
     private static final String TAG = "TrustmeService";
 
     private String pkgName;
-    private StatusBarNotification[] activeNotifications;
-    private NotificationListenerService.RankingMap rankingMap;
+    private NotificationRankIndex rankIndex;
 
     /*
      * Class for managing stacked notifications in a multi-container android
@@ -49,40 +42,16 @@ public class StackedNotificationManager {
      * be recognized. This manager basically determines stacked gmail
      * notification as a work around solution.
      *
-     * @param activeNotification Array containing the currently visible
-     *      notifications.
-     * @param rankingMap Map which contains the ranking order of all active
-     *      notifcations.
+     * @param rankIndex Index of the ranking order of all active
+     *      notifications, maintained by the {@link NotificationListener}.
      * @param pkgName packe name of app which produces stacked notifications
      *      e.g., com.google.android.gm for gmail or com.android.email for email
      * */
-    public StackedNotificationManager(StatusBarNotification[] activeNotifications,
-            NotificationListenerService.RankingMap rankingMap, String pkgName) {
-        this.activeNotifications = activeNotifications;
-        this.rankingMap = rankingMap;
+    public StackedNotificationManager(NotificationRankIndex rankIndex, String pkgName) {
+        this.rankIndex = rankIndex;
         this.pkgName = pkgName;
     }
 
-    /*
-     * Checks if the given {@link StatusBarNotification} is active, i.e visible
-     * in the UI.
-     *
-     * @param sbn Notification whose activity status is checked
-     * */
-    private boolean isActive(StatusBarNotification sbn) {
-        if (this.activeNotifications == null){
-
-            return true;
-        }
-
-        for (int i = 0; i < this.activeNotifications.length; i++) {
-            if (sbn.getKey().equals(this.activeNotifications[i].getKey()))
-                    return true;
-        }
-
-        return false;
-    }
-
     /*
      * Determines wether a stacked notification should be broadcasted to other
      * containers.
@@ -98,31 +67,16 @@ public class StackedNotificationManager {
      *      notification.
      * */
     public boolean shouldBroadcastNotification(StatusBarNotification sbn) {
-        Log.d(TAG, "Should broadcast notification with key " + sbn.getKey());
-
         if (sbn == null || !sbn.getPackageName().equals(this.pkgName)) {
             return false;
         }
-        if (!this.isActive(sbn) || this.rankingMap == null) {
-            return true;
-        }
-
-        ArrayList<String> gmKeys = new ArrayList<String>();
-        for (int i = 0; i < this.activeNotifications.length; i++) {
-            if (this.activeNotifications[i].getPackageName().equals(this.pkgName)) {
-                gmKeys.add(this.activeNotifications[i].getKey());
-            }
-        }
+        Log.d(TAG, "Should broadcast notification with key " + sbn.getKey());
 
-        LinkedList<String> orderedGmKeys = new LinkedList<String>();
-        for (int i = 0; i < rankingMap.getOrderedKeys().length; i++) {
-            for (String gmKey : gmKeys) {
-                if (this.rankingMap.getOrderedKeys()[i].equals(gmKey)) {
-                    orderedGmKeys.add(gmKey);
-                }
-            }
+        if (!this.rankIndex.hasRanking() || this.rankIndex.rankOf(sbn.getKey()) < 0) {
+            return true; // not active
         }
 
-        return orderedGmKeys.isEmpty() || orderedGmKeys.getFirst().equals(sbn.getKey());
+        String bestKey = this.rankIndex.bestKeyOf(this.pkgName);
+        return bestKey == null || bestKey.equals(sbn.getKey());
     }
 }
@@ -50,8 +50,7 @@ public abstract class TrustmeNotificationBuilder {
     }
 
     public void setDogearColor(int dogearColor) {
-        DogearView dogearView = new DogearView(context, dogearColor);
-        Bitmap dogearBitmap = dogearView.toBitmap();
+        Bitmap dogearBitmap = DogearView.getBitmap(context, dogearColor);
         remoteView.setImageViewBitmap(R.id.dogear, dogearBitmap);
     }
 
@@ -24,18 +24,18 @@
 package de.fraunhofer.aisec.trustme.service.notification;
 
 import java.lang.CharSequence;
+import java.io.PrintWriter;
 import java.lang.Exception;
 import java.nio.ByteBuffer;
 import java.io.ByteArrayOutputStream;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Canvas;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
@@ -43,16 +43,27 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
-import android.os.SystemProperties;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
+import android.view.WindowManager;
 import android.widget.RemoteViews;
 
+import de.fraunhofer.aisec.trustme.service.FrameBufferPool;
 import de.fraunhofer.aisec.trustme.service.R;
 import de.fraunhofer.aisec.trustme.CNotification.ContainerNotification;
 import de.fraunhofer.aisec.trustme.service.TrustmeActionReceiver;
+import de.fraunhofer.aisec.trustme.service.TrustmeProperties;
 
+/**
+ * Converts notifications between their Android, intent and protobuf representations.
+ *
+ * There is a single instance per process (see getInstance()), which is used concurrently
+ * by the NotificationListener, the TrustmeActionReceiver and the render threads of the
+ * NotificationRenderer; its state is therefore kept in concurrent collections.
+ */
 public class TrustmeNotificationManager implements ITrustmeNotificationManager {
     private static final String TAG = "TrustmeService";
 
@@ -77,87 +88,222 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
     private static final String ORIGINAL_ICON_WIDTH = INTENT_EXTRA + "original_icon_width";
     private static final String ORIGINAL_ICON_HEIGHT = INTENT_EXTRA + "original_icon_height";
 
-    private static final String CUSTOM_NOTIFICATION = INTENT_EXTRA + "custom_notification";
+    private static final String CUSTOM_NOTIFICATION = INTENT_EXTRA + "custom_notification"; // raw pixels
+    private static final String CUSTOM_NOTIFICATION_PNG = INTENT_EXTRA + "custom_notification_png";
     private static final String CUSTOM_NOTIFICATION_WIDTH = INTENT_EXTRA + "custom_notification_width";
     private static final String CUSTOM_NOTIFICATION_HEIGHT = INTENT_EXTRA + "custom_notification_height";
 
-    private static HashMap<String, Integer> uniqueRequestCode = new HashMap<String, Integer>();
-    private static int uniqueRequestCodeCounter = 0;
-
-    private static HashSet<String> progressNotifications = new HashSet<String>();
-
-    private final boolean allowCustomNotifications;
-
-    private Context context;
+    private static volatile TrustmeNotificationManager instance = null;
+
+    private final ConcurrentHashMap<String, Integer> uniqueRequestCode = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger uniqueRequestCodeCounter = new AtomicInteger(0);
+
+
+    // Offscreen target custom notifications are drawn into (see createBitmapFromNotification())
+    private final Object captureLock = new Object();
+    private Bitmap captureBitmap = null; // guarded by captureLock
+    private final Canvas captureCanvas = new Canvas(); // guarded by captureLock
+
+    // Pooled bitmaps used by notifications created but not yet released
+    private final ConcurrentHashMap<Notification, Bitmap> pooledBitmaps = new ConcurrentHashMap<Notification, Bitmap>();
+
+    // Icons of received notifications (see getOriginalIcon()).
+    private static final IconCache iconCache = new IconCache();
+    // Icons extracted from packages posting notifications (see extractIcon()).
+    private static final AppIconCache appIconCache = new AppIconCache();
+    // Rate limits the updates of progress notifications sent to cmld.
+    private static final ProgressForwarder progressForwarder = new ProgressForwarder();
+    // Bitmaps of received custom notifications; handed back by releaseNotification().
+    private static final BitmapPool bitmapPool = new BitmapPool(4*1024*1024);
+    // Shared memory regions of large pixel payloads of intents sent by this process.
+    private static final SharedPixelStore sharedPixels = new SharedPixelStore();
+    // Buffers compressed pixels of received notifications are inflated into.
+    private static final FrameBufferPool pixelBuffers = new FrameBufferPool("pixel buffer pool", 4*1024*1024);
+
+    // Statistics of icon inversions and scaling printed by dump(); guarded by the class lock.
+    private static long invertedIcons = 0;
+    private static long invertTimeUs = 0;
+    private static long scaledIcons = 0;
+    private static long missedIconReferences = 0;
+
+    // Statistics of forwarded notifications per path printed by dump(); the broadcast path
+    // is recorded separately for the sending and the receiving side. Guarded by the class lock.
+    private static final int PATH_DIRECT = 0;
+    private static final int PATH_BROADCAST_SENT = 1;
+    private static final int PATH_BROADCAST_RECEIVED = 2;
+    private static final long[] forwarded = new long[3];
+    private static final long[] forwardLatencyUs = new long[3];
+    private static final long[] forwardCpuUs = new long[3];
+
+    // Received icons larger than this (in px) are not even decoded.
+    private static final int MAX_RECEIVED_ICON_SIZE = 1024;
+
+    // Horizontal space of the notification panel not available to notifications
+    private static final int PANEL_MARGIN_DP = 16;
+    private static final int MAX_CAPTURE_HEIGHT_DP = 256;
+
+    private final Context context;
+
+    // Size of the large icon of a notification on this display; icons are scaled to fit.
+    // Re-read on configuration changes, as it depends on the density.
+    private volatile int largeIconWidth;
+    private volatile int largeIconHeight;
+
+    private TrustmeNotificationManager(Context context) {
+        this.context = context;
 
-    public TrustmeNotificationManager() {
-        this(null);
+        readLargeIconSize();
     }
 
-    public TrustmeNotificationManager(Context context) {
-        this.context = context;
-
-        this.allowCustomNotifications = SystemProperties.getBoolean("to.trustme.customnotification", false);
+    /**
+     * Returns the process-wide TrustmeNotificationManager, creating it on first use.
+     */
+    public static TrustmeNotificationManager getInstance(Context context) {
+        TrustmeNotificationManager tnm = instance;
+        if (tnm == null) {
+            synchronized (TrustmeNotificationManager.class) {
+                tnm = instance;
+                if (tnm == null) {
+                    tnm = new TrustmeNotificationManager(context.getApplicationContext());
+                    instance = tnm;
+                }
+            }
+        }
+        return tnm;
     }
 
+    /**
+     * Creates the intent broadcast to the TrustmeActionReceiver for a StatusBarNotification,
+     * or returns null if the notification is not to be forwarded. Large pixel fields are
+     * passed via shared memory (see SharedPixelStore).
+     */
     @Override
     public Intent createIntentFromStatusBarNotification(StatusBarNotification sbn, boolean cancel) {
-        Intent i = new Intent(TrustmeActionReceiver.TRUSTME_NOTIFICATION_INTENT);
+        ContainerNotification cn = extractNotification(sbn, cancel);
+        if (cn == null)
+            return null;
 
+        Intent i = new Intent(TrustmeActionReceiver.TRUSTME_NOTIFICATION_INTENT);
         i.putExtra(CODE_KEY, cancel ? CANCEL_CODE : POST_CODE);
-        i.putExtra(ID_KEY, sbn.getId());
-        i.putExtra(TAG_KEY, sbn.getTag());
-        i.putExtra(PKG_NAME_KEY, sbn.getPackageName());
-        i.putExtra(TIMESTAMP, System.nanoTime());
+        i.putExtra(ID_KEY, cn.id);
+        i.putExtra(TAG_KEY, cn.tag);
+        i.putExtra(PKG_NAME_KEY, cn.pkgName);
+        i.putExtra(TIMESTAMP, cn.timestamp);
+        if (cancel)
+            return i;
+
+        i.putExtra(NO_CLEAR, cn.noClear);
+        if (cn.customNotificationHeight != 0) { // custom notification
+            // The raw bitmap is too large for the intent itself; pass it via shared memory,
+            // or compress it if there is none.
+            if (!sharedPixels.putShared(i, CUSTOM_NOTIFICATION, cn.customNotification)) {
+                Bitmap b = Bitmap.createBitmap(cn.customNotificationWidth, cn.customNotificationHeight, Bitmap.Config.ARGB_8888);
+                b.copyPixelsFromBuffer(ByteBuffer.wrap(cn.customNotification));
+                ByteArrayOutputStream bs = new ByteArrayOutputStream();
+                b.compress(Bitmap.CompressFormat.PNG, 100, bs);
+                i.putExtra(CUSTOM_NOTIFICATION_PNG, bs.toByteArray());
+            }
+            i.putExtra(CUSTOM_NOTIFICATION_WIDTH, cn.customNotificationWidth);
+            i.putExtra(CUSTOM_NOTIFICATION_HEIGHT, cn.customNotificationHeight);
+        }
+        else { // standard notification
+            i.putExtra(CONTENT_TITLE_KEY, cn.title);
+            i.putExtra(CONTENT_TEXT_KEY, cn.text);
+            if (cn.originalIcon.length != 0)
+                sharedPixels.putPixels(i, ORIGINAL_ICON_KEY, cn.originalIcon);
+            i.putExtra(ORIGINAL_ICON_WIDTH, cn.originalIconWidth);
+            i.putExtra(ORIGINAL_ICON_HEIGHT, cn.originalIconHeight);
+        }
+
+        return i;
+    }
+
+    public Intent createIntentFromStatusBarNotification(StatusBarNotification sbn) {
+        return createIntentFromStatusBarNotification(sbn, false);
+    }
+
+    /**
+     * Creates the protobuf message for a StatusBarNotification directly, i.e., without the
+     * detour via createIntentFromStatusBarNotification() and createMessageFromIntent(), so
+     * custom notifications are not PNG encoded and decoded again. Returns null if the
+     * notification is not to be forwarded.
+     *
+     * This method is used by the NotificationListener to hand notifications to the
+     * TrustmeService running in the same process (see TrustmeService.getLocalSender()).
+     */
+    public ContainerNotification createMessageFromStatusBarNotification(StatusBarNotification sbn, boolean cancel) {
+        ContainerNotification cn = extractNotification(sbn, cancel);
+        if (cn == null)
+            return null;
+
+        if (cn.customNotificationHeight != 0)
+            cn.customNotification = PixelCodec.encode(cn.customNotification);
+        else if (cn.originalIcon.length != 0)
+            cn.originalIcon = PixelCodec.encode(cn.originalIcon);
+        return cn;
+    }
+
+    /**
+     * Extracts what is forwarded to cmld from a StatusBarNotification, with raw pixels in
+     * the pixel fields, or returns null if the notification is not to be forwarded. The
+     * pixels of the original icon are shared with the AppIconCache and must not be modified.
+     */
+    private ContainerNotification extractNotification(StatusBarNotification sbn, boolean cancel) {
+        ContainerNotification cn = new ContainerNotification();
+        cn.code = cancel ? ContainerNotification.CANCEL_NOTIFICATION : ContainerNotification.POST_NOTIFICATION;
+        cn.id = sbn.getId();
+        cn.tag = sbn.getTag() != null ? sbn.getTag() : "";
+        cn.pkgName = sbn.getPackageName();
+        cn.timestamp = System.nanoTime();
 
         if (cancel) {
-            String id = sbn.getPackageName() + "." + sbn.getTag() + "." + sbn.getId();
-            if (progressNotifications.contains(id))
-                progressNotifications.remove(id);
+            progressForwarder.remove(sbn);
+            return cn;
         }
-        else {
-        //if (!cancel) {
-            Notification n = sbn.getNotification();
-
-            if ((n.flags & Notification.FLAG_NO_CLEAR) == Notification.FLAG_NO_CLEAR ||
-                (n.flags & Notification.FLAG_ONGOING_EVENT) == Notification.FLAG_ONGOING_EVENT)
-                    i.putExtra(NO_CLEAR, true);
-            else
-                    i.putExtra(NO_CLEAR, false);
-
-            if (isCustomNotification(n)) { // custom notification
-                if (!this.allowCustomNotifications) {
-                    Log.d(TAG, "custom notification broadcasting not allowed " + sbn.getPackageName());
-                    return null; // custom notification not allowed by system property
-                }
-                Log.d(TAG, "Creating intent containing custom trustme notification from StatusBarNotification");
-                Bitmap nAsBitmap = createBitmapFromNotification(n);
-                ByteArrayOutputStream bs = new ByteArrayOutputStream();
-                nAsBitmap.compress(Bitmap.CompressFormat.PNG, 100, bs); // compress b/c bitmap may be too large for intent
-                i.putExtra(CUSTOM_NOTIFICATION, bs.toByteArray());
-                i.putExtra(CUSTOM_NOTIFICATION_WIDTH, nAsBitmap.getWidth());
-                i.putExtra(CUSTOM_NOTIFICATION_HEIGHT, nAsBitmap.getHeight());
-            }
-            else { // standard notification
-                if (isProgressNotification(sbn) && isProgressChangeOnly(sbn))
-                    return null;
 
-                Log.d(TAG, "Creating intent containing standard trustme notification from StatusBarNotification");
-                i.putExtra(CONTENT_TITLE_KEY, n.extras.getCharSequence(Notification.EXTRA_TITLE));
-                i.putExtra(CONTENT_TEXT_KEY, n.extras.getCharSequence(Notification.EXTRA_TEXT));
+        Notification n = sbn.getNotification();
+        cn.noClear = isNoClear(n);
 
-                Bitmap icon = extractIcon(sbn);
-                i.putExtra(ORIGINAL_ICON_KEY, bitmapToByteArray(icon));
-                i.putExtra(ORIGINAL_ICON_WIDTH, icon == null ? 0 : icon.getWidth());
-                i.putExtra(ORIGINAL_ICON_HEIGHT, icon == null ? 0 : icon.getHeight());
+        if (isCustomNotification(n)) { // custom notification
+            if (!TrustmeProperties.areCustomNotificationsAllowed()) {
+                Log.d(TAG, "custom notification forwarding not allowed " + sbn.getPackageName());
+                return null; // custom notification not allowed by system property
+            }
+            Log.d(TAG, "Extracting custom trustme notification from StatusBarNotification");
+            synchronized (captureLock) {
+                Bitmap nAsBitmap = createBitmapFromNotification(n);
+                byte[] pixels = bitmapToByteArray(nAsBitmap);
+                if (pixels == null)
+                    return null;
+                cn.customNotification = pixels;
+                cn.customNotificationWidth = nAsBitmap.getWidth();
+                cn.customNotificationHeight = nAsBitmap.getHeight();
+            }
+        }
+        else { // standard notification
+            if (!progressForwarder.shouldForward(sbn))
+                return null;
+
+            Log.d(TAG, "Extracting standard trustme notification from StatusBarNotification");
+            CharSequence title = n.extras.getCharSequence(Notification.EXTRA_TITLE);
+            CharSequence text = n.extras.getCharSequence(Notification.EXTRA_TEXT);
+            cn.title = title != null ? title.toString() : "";
+            cn.text = text != null ? text.toString() : "";
+
+            AppIconCache.Icon icon = extractIcon(sbn);
+            if (icon != null) {
+                cn.originalIcon = icon.pixels;
+                cn.originalIconWidth = icon.width;
+                cn.originalIconHeight = icon.height;
             }
         }
 
-        return i;
+        return cn;
     }
 
-    public Intent createIntentFromStatusBarNotification(StatusBarNotification sbn) {
-        return createIntentFromStatusBarNotification(sbn, false);
+    private static boolean isNoClear(Notification n) {
+        return (n.flags & Notification.FLAG_NO_CLEAR) == Notification.FLAG_NO_CLEAR ||
+                (n.flags & Notification.FLAG_ONGOING_EVENT) == Notification.FLAG_ONGOING_EVENT;
     }
 
 
@@ -203,12 +349,19 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
 
         // Include the following fields only for posting notifications but not for canceling them:
         if (cn.code == ContainerNotification.POST_NOTIFICATION) {
-            if (i.getByteArrayExtra(CUSTOM_NOTIFICATION) != null) { // custom notification
+            if (i.hasExtra(CUSTOM_NOTIFICATION_WIDTH)) { // custom notification
                 Log.d(TAG, "Creating message from intent (containing custom trustme notification data)");
-                Bitmap b = BitmapFactory.decodeByteArray(i.getByteArrayExtra(CUSTOM_NOTIFICATION),
-                        0,
-                        i.getByteArrayExtra(CUSTOM_NOTIFICATION).length);
-                cn.customNotification = bitmapToByteArray(b);
+                byte[] pixels = SharedPixelStore.getPixels(i, CUSTOM_NOTIFICATION);
+                if (pixels == null) {
+                    byte[] png = i.getByteArrayExtra(CUSTOM_NOTIFICATION_PNG);
+                    if (png != null)
+                        pixels = bitmapToByteArray(BitmapFactory.decodeByteArray(png, 0, png.length));
+                }
+                if (pixels == null) {
+                    Log.e(TAG, "Malformed trustme intent: missing custom notification pixels");
+                    return null;
+                }
+                cn.customNotification = PixelCodec.encode(pixels);
                 cn.customNotificationWidth = i.getIntExtra(CUSTOM_NOTIFICATION_WIDTH, 0);
                 cn.customNotificationHeight = i.getIntExtra(CUSTOM_NOTIFICATION_HEIGHT, 0);
             }
@@ -224,8 +377,9 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
                 /* Note: if the intent does not have the original icon extra the "The Sender's run loop threw an exception:null"
                 exception is thrown and the protobuf message is not send. Therefore, the field originalIcon of the protobuf
                 message must not be set if the original icon extra is null. */
-                if (i.getByteArrayExtra(ORIGINAL_ICON_KEY) != null)
-                    cn.originalIcon = i.getByteArrayExtra(ORIGINAL_ICON_KEY);
+                byte[] originalIcon = SharedPixelStore.getPixels(i, ORIGINAL_ICON_KEY);
+                if (originalIcon != null)
+                    cn.originalIcon = PixelCodec.encode(originalIcon);
                 cn.originalIconWidth = i.getIntExtra(ORIGINAL_ICON_WIDTH, 0);
                 cn.originalIconHeight = i.getIntExtra(ORIGINAL_ICON_HEIGHT, 0);
             }
@@ -259,7 +413,7 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
         }
         else { // standard notification
             Log.d(TAG, "Creating standard notification from received message");
-            return createStandardNotificationFromMessage(sourceContainerColor, cn, pendingSwitchIntent);
+            return createStandardNotificationFromMessage(sourceContainer, sourceContainerColor, cn, pendingSwitchIntent);
         }
     }
 
@@ -277,13 +431,15 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
         return trustmeStandardNotificationBuilder.getNotification();
     }
 
-    private Notification createStandardNotificationFromMessage(String sourceContainerColor, ContainerNotification cn, PendingIntent pendingIntent) {
+    private Notification createStandardNotificationFromMessage(String sourceContainer, String sourceContainerColor, ContainerNotification cn, PendingIntent pendingIntent) {
         if (cn.originalIcon.length == 0 || cn.originalIconWidth == 0 || cn.originalIconHeight == 0)
             return null;
 
-        Bitmap originalIcon = Bitmap.createBitmap(cn.originalIconWidth, cn.originalIconHeight, Bitmap.Config.ARGB_8888);
-        originalIcon.copyPixelsFromBuffer(ByteBuffer.wrap(cn.originalIcon));
-        originalIcon = invertBitmap(originalIcon);
+        // A referenced icon we do not have (anymore) is no reason to lose the notification;
+        // it is shown without its icon then.
+        Bitmap originalIcon = getOriginalIcon(sourceContainer, cn);
+        if (originalIcon == null && !isIconReference(cn))
+            return null;
 
         TrustmeStandardNotificationBuilder trustmeStandardNotificationBuilder = new TrustmeStandardNotificationBuilder(
                 context,
@@ -302,8 +458,21 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
         if (cn.customNotification == null)
             return null;
 
-        Bitmap originalNotification = Bitmap.createBitmap(cn.customNotificationWidth, cn.customNotificationHeight, Bitmap.Config.ARGB_8888);
-        originalNotification.copyPixelsFromBuffer(ByteBuffer.wrap(cn.customNotification));
+        int rawSize = cn.customNotificationWidth * cn.customNotificationHeight * 4;
+        Bitmap originalNotification;
+        // Raw pixels are copied into the bitmap straight from the message.
+        byte[] buffer = PixelCodec.isCompressed(cn.customNotification, rawSize) ? pixelBuffers.acquire(rawSize) : null;
+        try {
+            ByteBuffer pixels = PixelCodec.decode(cn.customNotification, rawSize, buffer);
+            if (pixels == null)
+                return null;
+            originalNotification = bitmapPool.acquire(cn.customNotificationWidth, cn.customNotificationHeight);
+            originalNotification.copyPixelsFromBuffer(pixels);
+        }
+        finally {
+            if (buffer != null)
+                pixelBuffers.release(buffer);
+        }
 
         TrustmeCustomNotificationBuilder trustmeCustomNotificationBuilder = new TrustmeCustomNotificationBuilder(
                 context,
@@ -312,24 +481,154 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
                 cn.noClear,
                 pendingIntent);
 
-        return trustmeCustomNotificationBuilder.getNotification();
+        Notification n = trustmeCustomNotificationBuilder.getNotification();
+        if (n != null)
+            pooledBitmaps.put(n, originalNotification);
+        else
+            bitmapPool.release(originalNotification);
+        return n;
+    }
+
+    /**
+     * Releases the resources of a notification returned by createNotificationFromMessage()
+     * once it has been posted, i.e., NotificationManager.notify() has returned, or once it
+     * will not be posted anymore. The notification must not be used afterwards.
+     */
+    public void releaseNotification(Notification n) {
+        if (n == null)
+            return;
+        Bitmap bitmap = pooledBitmaps.remove(n);
+        if (bitmap != null)
+            bitmapPool.release(bitmap);
+    }
+
+    /**
+     * Drops cached and pooled bitmaps that are not in use when the system is running low on
+     * memory.
+     */
+    public static void onTrimMemory(int level) {
+        DogearView.clearCache();
+        bitmapPool.clear();
+        pixelBuffers.clear();
+        appIconCache.clear();
+    }
+
+    private static boolean isIconReference(ContainerNotification cn) {
+        return PixelCodec.referencedHash(cn.originalIcon, cn.originalIconWidth * cn.originalIconHeight * 4) != null;
     }
 
-    private Bitmap extractIcon(StatusBarNotification sbn) {
+    /**
+     * Returns the decoded and inverted original icon of a received notification. Icons
+     * are looked up in the IconCache first, so icons we have seen before are neither
+     * decoded nor inverted again. Icons sent as references (see NotificationDeltaEncoder)
+     * can only be resolved through the cache.
+     */
+    private Bitmap getOriginalIcon(String sourceContainer, ContainerNotification cn) {
+        if (cn.originalIconWidth > MAX_RECEIVED_ICON_SIZE || cn.originalIconHeight > MAX_RECEIVED_ICON_SIZE) {
+            Log.d(TAG, "Received icon is too large (" + cn.originalIconWidth + "x" + cn.originalIconHeight + "); ignoring notification");
+            return null;
+        }
+        int rawSize = cn.originalIconWidth * cn.originalIconHeight * 4;
+        byte[] hash = PixelCodec.referencedHash(cn.originalIcon, rawSize);
+        boolean isReference = hash != null;
+        if (!isReference)
+            hash = PixelCodec.contentHash(cn.originalIcon);
+
+        Bitmap originalIcon = iconCache.get(sourceContainer, hash);
+        if (originalIcon != null)
+            return originalIcon;
+        if (isReference) {
+            Log.d(TAG, "Referenced icon is not cached (anymore); showing notification without it");
+            synchronized (TrustmeNotificationManager.class) {
+                missedIconReferences++;
+            }
+            return null;
+        }
+
+        byte[] buffer = pixelBuffers.acquire(rawSize);
+        try {
+            ByteBuffer pixels = PixelCodec.decode(cn.originalIcon, rawSize, buffer);
+            if (pixels == null)
+                return null;
+            // Raw pixels are the message field itself, which the delta decoder may still hold.
+            if (pixels.array() != buffer)
+                System.arraycopy(cn.originalIcon, 0, buffer, 0, rawSize);
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            IconInverter.invert(buffer, 0, rawSize);
+            originalIcon = Bitmap.createBitmap(cn.originalIconWidth, cn.originalIconHeight, Bitmap.Config.ARGB_8888);
+            originalIcon.copyPixelsFromBuffer(ByteBuffer.wrap(buffer, 0, rawSize));
+            recordInversion(SystemClock.elapsedRealtimeNanos() - start);
+        }
+        finally {
+            pixelBuffers.release(buffer);
+        }
+        // Peers without sending side scaling may still send larger icons.
+        originalIcon = scaleIcon(originalIcon, largeIconWidth, largeIconHeight);
+        iconCache.put(sourceContainer, hash, originalIcon);
+        return originalIcon;
+    }
+
+    private AppIconCache.Icon extractIcon(StatusBarNotification sbn) {
         int iconId = sbn.getNotification().extras.getInt(Notification.EXTRA_SMALL_ICON);
+        String pkgName = sbn.getPackageName();
+        String configKey = AppIconCache.configKeyOf(context.getResources().getConfiguration());
+
+        AppIconCache.Icon icon = appIconCache.get(pkgName, iconId, configKey);
+        if (icon != null)
+            return icon;
 
-        PackageManager pm = context.getPackageManager();
         try {
-            Context c = context.createPackageContext(sbn.getPackageName(), 0);
+            Context c = context.createPackageContext(pkgName, 0);
             Resources r = c.getResources();
             Drawable d = r.getDrawable(iconId);
-            return drawableToBitmap(d);
+            // Icons are shown as large icon in the other containers; there is no point in
+            // sending (and parceling) more pixels than that.
+            Bitmap b = scaleIcon(drawableToBitmap(d), largeIconWidth, largeIconHeight);
+            byte[] pixels = bitmapToByteArray(b);
+            if (pixels == null)
+                return null;
+            icon = new AppIconCache.Icon(pixels, b.getWidth(), b.getHeight());
+            appIconCache.put(pkgName, iconId, configKey, icon);
+            return icon;
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Drops the cached icons of a package which has been replaced or removed.
+     */
+    public static void invalidateIcons(String pkgName) {
+        appIconCache.invalidate(pkgName);
+    }
+
+    /**
+     * Sets the callback suppressed updates of progress notifications are handed to once they
+     * may be forwarded (see ProgressForwarder), or null to drop them.
+     */
+    public static void setProgressCallback(ProgressForwarder.Callback callback) {
+        progressForwarder.setCallback(callback);
+    }
+
+    /**
+     * Drops all cached icons, as they may look different in the new configuration, and
+     * picks up the large icon size of the new configuration.
+     */
+    public static void onConfigurationChanged() {
+        appIconCache.clear();
+        TrustmeNotificationManager tnm = instance;
+        if (tnm != null)
+            tnm.readLargeIconSize();
+    }
+
+    private void readLargeIconSize() {
+        Resources r = context.getResources();
+        largeIconWidth = r.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        largeIconHeight = r.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+    }
+
     private Bitmap drawableToBitmap(Drawable drawable) {
         if (drawable instanceof BitmapDrawable) {
             BitmapDrawable bitmapDrawable = (BitmapDrawable) drawable;
@@ -352,12 +651,48 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
         return bitmap;
     }
 
+    /**
+     * Returns icon scaled down (keeping its aspect ratio) to fit into maxWidth x maxHeight,
+     * or icon itself if it fits already. icon is never modified or recycled.
+     */
+    private static Bitmap scaleIcon(Bitmap icon, int maxWidth, int maxHeight) {
+        if (icon == null || maxWidth <= 0 || maxHeight <= 0)
+            return icon;
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        if (width <= maxWidth && height <= maxHeight)
+            return icon;
+
+        float scale = Math.min((float) maxWidth / width, (float) maxHeight / height);
+        int targetWidth = Math.max(1, Math.round(width * scale));
+        int targetHeight = Math.max(1, Math.round(height * scale));
+
+        // Bilinear filtering only takes 2x2 source pixels into account; halve large icons
+        // first so that no source pixels are skipped.
+        Bitmap scaled = icon;
+        while (scaled.getWidth() >= 2 * targetWidth && scaled.getHeight() >= 2 * targetHeight) {
+            Bitmap half = Bitmap.createScaledBitmap(scaled, scaled.getWidth() / 2, scaled.getHeight() / 2, true);
+            if (scaled != icon)
+                scaled.recycle();
+            scaled = half;
+        }
+        Bitmap result = Bitmap.createScaledBitmap(scaled, targetWidth, targetHeight, true);
+        if (scaled != icon && scaled != result)
+            scaled.recycle();
+
+        synchronized (TrustmeNotificationManager.class) {
+            scaledIcons++;
+        }
+        return result;
+    }
+
     private byte[] bitmapToByteArray(Bitmap bitmap) {
         if (bitmap == null)
             return null;
 
         try {
-            ByteBuffer byteBuffer = ByteBuffer.allocate(bitmap.getAllocationByteCount());
+            // Reconfigured bitmaps may have a larger allocation than their pixels need.
+            ByteBuffer byteBuffer = ByteBuffer.allocate(bitmap.getByteCount());
             bitmap.copyPixelsToBuffer(byteBuffer);
             return byteBuffer.array();
         } catch (Exception e) {
@@ -381,78 +716,116 @@ public class TrustmeNotificationManager implements ITrustmeNotificationManager {
                 || "".equals(text);
     }
 
-    private boolean isProgressNotification(StatusBarNotification sbn) {
-        String id = sbn.getPackageName() + "." + sbn.getTag() + "." + sbn.getId();
-        if (progressNotifications.contains(id)) // necessary in order to recognize "finished notifications" (setProgress(0, 0, false))
-            return true;
+    /**
+     * Renders the content view of n as it would be shown in the notification panel of this
+     * display. The returned bitmap is reused by the next call and must only be used while
+     * holding captureLock.
+     */
+    private Bitmap createBitmapFromNotification(Notification n) {
+        if (n == null || n.contentView == null)
+            return null;
 
-        Notification n = sbn.getNotification();
-        if (n.extras.getInt("android.progressMax") != 0 || n.extras.getBoolean("android.progressIndeterminate"))
-            return true;
+        // The panel spans the width of the display in portrait orientation.
+        DisplayMetrics metrics = new DisplayMetrics();
+        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        wm.getDefaultDisplay().getRealMetrics(metrics);
+        int width = Math.min(metrics.widthPixels, metrics.heightPixels)
+                - Math.round(PANEL_MARGIN_DP * metrics.density);
+        int maxHeight = Math.round(MAX_CAPTURE_HEIGHT_DP * metrics.density);
+
+        RemoteViews extractedContentRemoteView = n.contentView;
+        View view = extractedContentRemoteView.apply(context, null);
+        view.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(maxHeight, View.MeasureSpec.AT_MOST));
+        int height = view.getMeasuredHeight();
+        if (height <= 0)
+            return null;
+        view.layout(0, 0, width, height);
 
-        return false;
+        int downsample = TrustmeProperties.getCaptureDownsample();
+        int bitmapWidth = Math.max(1, width / downsample);
+        int bitmapHeight = Math.max(1, height / downsample);
+        if (captureBitmap == null || captureBitmap.getAllocationByteCount() < bitmapWidth * bitmapHeight * 4) {
+            captureBitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+        }
+        else {
+            captureBitmap.reconfigure(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
+        }
+        captureBitmap.eraseColor(Color.TRANSPARENT);
+        captureCanvas.setBitmap(captureBitmap);
+
+        int saveCount = captureCanvas.save();
+        captureCanvas.scale((float) bitmapWidth / width, (float) bitmapHeight / height);
+        view.draw(captureCanvas);
+        captureCanvas.restoreToCount(saveCount);
+        return captureBitmap;
     }
 
     /**
-     * Returns true if we should ignore this notification because it only updates
-     * the progress of an already posted notification.
-     * Returns false if this notification hasn't been seen before or the progress
-     * is set to "finished", that is, setProgress(0, 0, false) was called.
+     * Records that a notification has been handed to the outbound queue, latencyNanos after
+     * the NotificationListener has been called, using cpuNanos of CPU time to get there (for
+     * the broadcast path, only the part spent in the TrustmeActionReceiver).
      */
-    private boolean isProgressChangeOnly(StatusBarNotification sbn) {
-        String id = sbn.getPackageName() + "." + sbn.getTag() + "." + sbn.getId();
-        if (!progressNotifications.contains(id)) { // first notification of this "progress notification series"?
-            progressNotifications.add(id);
-            return false; // indicate to caller to display this notification
-        }
+    public static void recordForward(boolean direct, long latencyNanos, long cpuNanos) {
+        record(direct ? PATH_DIRECT : PATH_BROADCAST_RECEIVED, latencyNanos, cpuNanos);
+    }
 
-        Notification n = sbn.getNotification();
-        if (n.extras.getInt("android.progressMax") == 0 &&
-            n.extras.getInt("android.progress") == 0 &&
-            n.extras.getBoolean("android.progressIndeterminate") == false) {
-                progressNotifications.remove(id); // progress is finished
-                return false; // indicate to caller to display this notification
-        }
+    /**
+     * Records that the NotificationListener has broadcast a notification, latencyNanos after
+     * it has been called, using cpuNanos of CPU time to create and send the intent.
+     */
+    public static void recordBroadcastSent(long latencyNanos, long cpuNanos) {
+        record(PATH_BROADCAST_SENT, latencyNanos, cpuNanos);
+    }
 
-        return true; // progress change; indicate to caller to ignore this notification
+    private static synchronized void record(int path, long latencyNanos, long cpuNanos) {
+        forwarded[path]++;
+        forwardLatencyUs[path] += latencyNanos / 1000;
+        forwardCpuUs[path] += cpuNanos / 1000;
     }
 
-    private Bitmap createBitmapFromNotification(Notification n) {
-        if (n == null)
-            return null;
+    private static synchronized void recordInversion(long nanos) {
+        invertedIcons++;
+        invertTimeUs += nanos / 1000;
+    }
 
-        RemoteViews extractedContentRemoteView = n.contentView;
-        View view = extractedContentRemoteView.apply(context, null);
-        view.measure(0, 0); // required
-        view.layout(0, 0, 1080 - 50, view.getMeasuredHeight()); // TODO how can we dynamically determine the 3rd parameter?
-        view.setDrawingCacheEnabled(true);
-        view.buildDrawingCache(true);
-        return view.getDrawingCache(true);
-    }
-
-    private Bitmap invertBitmap(Bitmap bitmap) {
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-        Bitmap bitmapInv = Bitmap.createBitmap(width, height, bitmap.getConfig());
-        int a, r, g, b;
-
-        // We invert each pixel individually.
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int p = bitmap.getPixel(x, y);
-                a = Color.alpha(p);
-                r = Color.red(p);
-                g = Color.green(p);
-                b = Color.blue(p);
-                bitmapInv.setPixel(x, y, Color.argb(a, 255 - r, 255 - g, 255 - b));
+    public static void dump(PrintWriter pw) {
+        DogearView.dump(pw);
+        bitmapPool.dump(pw);
+        iconCache.dump(pw);
+        synchronized (TrustmeNotificationManager.class) {
+            pw.println("  inverted icons: " + invertedIcons + ", avg time: "
+                    + (invertedIcons > 0 ? invertTimeUs / invertedIcons : 0) + " us");
+            pw.println("  downscaled icons: " + scaledIcons);
+            pw.println("  missed icon references: " + missedIconReferences);
+            pw.println("forwarded notifications:");
+            String[] paths = { "direct", "broadcast sent", "broadcast received" };
+            for (int path = 0; path < paths.length; path++) {
+                long n = forwarded[path];
+                pw.println("  " + paths[path] + ": " + n
+                        + ", avg latency: " + (n > 0 ? forwardLatencyUs[path] / n : 0) + " us"
+                        + ", avg cpu time: " + (n > 0 ? forwardCpuUs[path] / n : 0) + " us");
             }
+            long sent = forwarded[PATH_BROADCAST_SENT];
+            long received = forwarded[PATH_BROADCAST_RECEIVED];
+            pw.println("  broadcast avg cpu time (sent + received): "
+                    + ((sent > 0 ? forwardCpuUs[PATH_BROADCAST_SENT] / sent : 0)
+                    + (received > 0 ? forwardCpuUs[PATH_BROADCAST_RECEIVED] / received : 0)) + " us");
         }
-        return bitmapInv;
+        appIconCache.dump(pw);
+        progressForwarder.dump(pw);
+        sharedPixels.dump(pw);
+        pixelBuffers.dump(pw);
     }
 
     private int getUniqueRequestCode(String container) {
-        if (!uniqueRequestCode.containsKey(container))
-            uniqueRequestCode.put(container, ++uniqueRequestCodeCounter);
-        return uniqueRequestCode.get(container);
+        Integer code = uniqueRequestCode.get(container);
+        if (code == null) {
+            Integer newCode = uniqueRequestCodeCounter.incrementAndGet();
+            code = uniqueRequestCode.putIfAbsent(container, newCode);
+            if (code == null)
+                code = newCode;
+        }
+        return code;
     }
 }
@@ -110,8 +110,12 @@ public class TrustmeStandardNotificationBuilder extends TrustmeNotificationBuild
         Notification standardNotification = standardNotificationBuilder.build();
 
         // Now extract contentView from standard notification and put it into our custom trustme notification.
+        // When an existing notification is updated, SystemUI reapplies our RemoteViews to the views
+        // already shown, which would append the new content on top of the old one. Clearing the
+        // content container first makes the update correct with a single notify().
         RemoteViews extractedContentRemoteView = standardNotification.contentView;
-        remoteView.addView(R.id.trustme_notification_standard, extractedContentRemoteView);
+        remoteView.removeAllViews(R.id.trustme_notification_content);
+        remoteView.addView(R.id.trustme_notification_content, extractedContentRemoteView);
 
         // Finally, generate combined "trustme dogear notification".
         if (customIconId != 0)